@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for one complete count through SplitPipeline against the fake
+ * backend.  With meanMillis 0 every query completes inline, which
+ * measures the per-split cost of the result aggregation loop itself.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final long TOTAL_ROWS = 1000000000L;
+
+    @Param({"10000"})
+    public int numSplits;
+
+    @Param({"100"})
+    public int numFutures;
+
+    @Param({"0"})
+    public long targetLatency;
+
+    @Param({"constant", "lognormal"})
+    public String distribution;
+
+    @Param({"0", "2"})
+    public double meanMillis;
+
+    @Param({"0", "0.001"})
+    public double timeoutRate;
+
+    @Param({"0"})
+    public double errorRate;
+
+    private FakeSplitExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = new FakeSplitExecutor(TOTAL_ROWS, distribution, meanMillis, timeoutRate, errorRate, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public long count() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, numSplits);
+        ConcurrencyController limiter = new ConcurrencyController(numFutures, targetLatency, 0);
+        CountMetrics metrics = new CountMetrics("bench", "fake", plan.getTotalSplits(), limiter);
+        SplitPipeline pipeline = new SplitPipeline(executor, limiter, metrics, 0);
+        pipeline.setRetryPolicy(10, 1, BigInteger.ONE);
+        if (!pipeline.run(plan.iterator()))
+            throw new IllegalStateException("Count failed", pipeline.getFailure());
+        return pipeline.getCount();
+    }
+}
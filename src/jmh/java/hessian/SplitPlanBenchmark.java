@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of planning the splits the way determineSplits() does for the
+ * token range path, and of walking every split in the plan, on a ring
+ * of numRanges random vnode tokens.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitPlanBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int numSplits;
+
+    @Param({"1536"})
+    public int numRanges;
+
+    private long[] ring;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        ring = new long[numRanges];
+        for (int i = 0; i < numRanges; i++)
+            ring[i] = r.nextLong();
+        Arrays.sort(ring);
+    }
+
+    private SplitPlan plan() {
+        SplitPlan plan = new SplitPlan(false);
+        long perRange = Math.max(1, Math.max(numRanges * 10, numSplits) / numRanges);
+        for (int i = 0; i < numRanges; i++)
+            plan.add(ring[(i + numRanges - 1) % numRanges], ring[i], perRange);
+        return plan;
+    }
+
+    @Benchmark
+    public SplitPlan planOnly() {
+        return plan();
+    }
+
+    @Benchmark
+    public void planAndIterate(Blackhole bh) {
+        for (Split s : plan())
+            bh.consume(s);
+    }
+}
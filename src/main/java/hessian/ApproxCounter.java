@@ -0,0 +1,433 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Estimates a table's row count from an exact COUNT(*) of a stratified
+ * random sample of the planned splits.
+ *
+ * The planned splits are cut, in token order, into strata holding about
+ * the same number of partitions by system.size_estimates, or of splits
+ * if there are no estimates.  Each round samples splits without
+ * replacement in every stratum, counts them through the pipeline, and
+ * computes the stratified estimate of the total with its variance:
+ *
+ *   T = sum_h N_h * mean_h
+ *   Var(T) = sum_h N_h^2 * (1 - n_h / N_h) * s_h^2 / n_h
+ *
+ * The first round is spread over the strata by their estimated size.
+ * Further rounds are sized from the observed variances for the target
+ * relative error, cut to what the rest of the time budget allows at
+ * the last round's pace, and allocated to strata in proportion to
+ * N_h * s_h (Neyman allocation).  Sampling stops at the target error,
+ * at the time budget, or when every split has been counted.
+ */
+public class ApproxCounter {
+    private final SplitPlan plan;
+    private final SplitPipeline pipeline;
+    private final int numStrata;
+    private final double targetError;
+    private final long timeBudgetNanos;
+    private final double z;
+    private final int initialSample;
+    private final CountMetrics metrics;
+    private final int debug;
+    private final Random random = new Random();
+
+    // size_estimates ranges by begin token, none wrapping
+    private final NavigableMap<BigInteger, Estimate> estimates = new TreeMap<>();
+    private long[] segmentOffsets;  // splits before each plan segment
+    private double[] segmentWeights;  // estimated partitions in each plan segment
+    private double[] weightOffsets;  // estimated partitions before each plan segment
+    private Stratum[] strata;
+    private double estimate = 0;
+    private double halfWidth = 0;
+    private long sampled = 0;
+
+    private static class Estimate {
+        final BigInteger begin;
+        final BigInteger end;
+        final double partitions;
+
+        Estimate(BigInteger begin, BigInteger end, double partitions) {
+            this.begin = begin;
+            this.end = end;
+            this.partitions = partitions;
+        }
+    }
+
+    // One sampled split; bisected halves add into the same unit
+    private static class SampleUnit {
+        final Stratum stratum;
+        final LongAdder count = new LongAdder();
+
+        SampleUnit(Stratum stratum) {
+            this.stratum = stratum;
+        }
+    }
+
+    // Splits [first, first + size) in plan order, and what has been sampled from them
+    private class Stratum {
+        final long first;
+        final long size;
+        final double weight;
+        // A partial Fisher-Yates shuffle of [0, size): the first n places
+        // hold the splits drawn so far, swapped the other places moved
+        final Map<Long, Long> swapped = new HashMap<>();
+        long n = 0;
+        double sum = 0;
+        double sumSquares = 0;
+
+        Stratum(long first, long size, double weight) {
+            this.first = first;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        long n() {
+            return n;
+        }
+
+        double mean() {
+            return (0 == n()) ? 0 : sum / n();
+        }
+
+        double variance() {
+            long n = n();
+            if (n < 2)
+                return 0;
+            return Math.max(0, (sumSquares - sum * sum / n) / (n - 1));
+        }
+
+        // A split of this stratum that has not been sampled yet, or null
+        Split draw() {
+            if (n >= size)
+                return null;
+            long i = n + (long) (random.nextDouble() * (size - n));
+            long j = swapped.getOrDefault(i, i);
+            if (i != n)
+                swapped.put(i, swapped.getOrDefault(n, n));
+            swapped.remove(n);
+            n++;
+            Split s = planSplit(first + j);
+            s.setOwner(new SampleUnit(this));
+            return s;
+        }
+    }
+
+    /**
+     * targetError is the relative half-width of the confidence interval
+     * to sample until (0 for a single round); timeBudgetSeconds of 0
+     * means no time limit.
+     */
+    public ApproxCounter(SplitPlan plan, SplitPipeline pipeline, CountMetrics metrics, int numStrata,
+                         int initialSample, double targetError, long timeBudgetSeconds,
+                         double confidence, int debug) {
+        this.plan = plan;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.numStrata = numStrata;
+        this.initialSample = initialSample;
+        this.targetError = targetError;
+        this.timeBudgetNanos = TimeUnit.SECONDS.toNanos(timeBudgetSeconds);
+        this.z = normalQuantile(0.5 + confidence / 2);
+        this.debug = debug;
+    }
+
+    /**
+     * Adds a range of system.size_estimates to stratify by.  The node
+     * queried only holds estimates for its own ranges; the rest of the
+     * ring is taken to be as dense as those on average.  The estimates
+     * count partitions, not rows, so they only shape the strata.
+     */
+    public void addSizeEstimate(BigInteger begin, BigInteger end, long partitions) {
+        if (0 <= begin.compareTo(end)) {
+            // Wraps around the ring; shared between its two parts by width
+            BigInteger min = plan.getMinToken();
+            BigInteger max = plan.getMaxToken();
+            double high = width(begin, max);
+            double share = high / (high + width(min, end));
+            if (!begin.equals(max))
+                estimates.put(begin, new Estimate(begin, max, partitions * share));
+            if (!end.equals(min))
+                estimates.put(min, new Estimate(min, end, partitions * (1 - share)));
+            return;
+        }
+        estimates.put(begin, new Estimate(begin, end, partitions));
+    }
+
+    private static double width(BigInteger begin, BigInteger end) {
+        return new BigDecimal(end.subtract(begin)).doubleValue();
+    }
+
+    // Estimated partitions in each plan segment, or its number of
+    // splits if there are no estimates
+    private void weighSegments() {
+        int numSegments = plan.getNumSegments();
+        segmentWeights = new double[numSegments];
+        double coveredWidth = 0;
+        double coveredPartitions = 0;
+        for (Estimate e : estimates.values()) {
+            coveredWidth += width(e.begin, e.end);
+            coveredPartitions += e.partitions;
+        }
+        if ((0 >= coveredPartitions) || (0 >= coveredWidth)) {
+            for (int seg = 0; seg < numSegments; seg++)
+                segmentWeights[seg] = plan.getNumSplits(seg);
+            return;
+        }
+        double density = coveredPartitions / coveredWidth;
+        for (int seg = 0; seg < numSegments; seg++) {
+            Split s = plan.segment(seg);
+            BigInteger begin = new BigInteger(s.beginString());
+            BigInteger end = new BigInteger(s.endString());
+            BigInteger from = estimates.floorKey(begin);
+            double covered = 0;
+            double partitions = 0;
+            for (Estimate e : estimates.tailMap((null != from) ? from : begin, true).values()) {
+                if (0 <= e.begin.compareTo(end))
+                    break;
+                double overlap = width(e.begin.max(begin), e.end.min(end));
+                if (overlap <= 0)
+                    continue;
+                covered += overlap;
+                partitions += e.partitions * overlap / width(e.begin, e.end);
+            }
+            segmentWeights[seg] = partitions + density * Math.max(0, width(begin, end) - covered);
+        }
+    }
+
+    private void buildStrata() {
+        int numSegments = plan.getNumSegments();
+        weighSegments();
+        segmentOffsets = new long[numSegments];
+        weightOffsets = new double[numSegments];
+        long total = 0;
+        double totalWeight = 0;
+        for (int seg = 0; seg < numSegments; seg++) {
+            segmentOffsets[seg] = total;
+            weightOffsets[seg] = totalWeight;
+            total += plan.getNumSplits(seg);
+            totalWeight += segmentWeights[seg];
+        }
+        int k = (int) Math.max(1, Math.min(numStrata, total));
+        // Cut where the weight before a split reaches each k-th of the
+        // total, keeping every stratum at least one split
+        long[] bounds = new long[k + 1];
+        bounds[k] = total;
+        for (int h = 1; h < k; h++) {
+            double target = totalWeight * h / k;
+            long lo = 0;
+            long hi = total;
+            while (lo < hi) {
+                long mid = lo + (hi - lo) / 2;
+                if (weightBefore(mid) >= target)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            bounds[h] = Math.min(Math.max(lo, bounds[h - 1] + 1), total - (k - h));
+        }
+        strata = new Stratum[k];
+        for (int h = 0; h < k; h++)
+            strata[h] = new Stratum(bounds[h], bounds[h + 1] - bounds[h],
+                    weightBefore(bounds[h + 1]) - weightBefore(bounds[h]));
+    }
+
+    // The plan segment holding the j-th split, in plan order
+    private int segmentOf(long j) {
+        int seg = Arrays.binarySearch(segmentOffsets, j);
+        if (seg < 0)
+            seg = -seg - 2;
+        // Skip empty segments that share an offset
+        while ((seg + 1 < segmentOffsets.length) && (segmentOffsets[seg + 1] == j))
+            seg++;
+        return seg;
+    }
+
+    // The estimated partitions in the splits before the j-th
+    private double weightBefore(long j) {
+        int seg = segmentOf(j);
+        return weightOffsets[seg] + segmentWeights[seg] * (j - segmentOffsets[seg]) / plan.getNumSplits(seg);
+    }
+
+    // The j-th split of the plan, in plan order
+    private Split planSplit(long j) {
+        int seg = segmentOf(j);
+        return plan.split(seg, j - segmentOffsets[seg]);
+    }
+
+    /**
+     * Samples until done.  Returns false if the pipeline failed; the
+     * failure is available from the pipeline.
+     */
+    public boolean run() {
+        long start = System.nanoTime();
+        buildStrata();
+        Debug.print(debug, "Sampling " + plan.getTotalSplits() + " splits in " + strata.length + " strata", true, 1);
+
+        long[] allocation = allocate(Math.max(initialSample, 2 * strata.length), false);
+        while (true) {
+            long roundStart = System.nanoTime();
+            long before = sampled;
+            if (!runRound(allocation))
+                return false;
+            long nanosPerSplit = (System.nanoTime() - roundStart) / Math.max(1, sampled - before);
+            computeEstimate();
+            Debug.print(debug, String.format("Sampled %d splits: %.0f +/- %.0f", sampled, estimate, halfWidth), true, 1);
+            if (sampled >= plan.getTotalSplits())
+                return true;
+            if ((0 == targetError) || (halfWidth <= targetError * Math.abs(estimate)))
+                return true;
+            long size = nextRoundSize();
+            if (0 < timeBudgetNanos) {
+                // No bigger than the rest of the budget allows at this pace
+                long left = timeBudgetNanos - (System.nanoTime() - start);
+                size = Math.min(size, left / Math.max(1, nanosPerSplit));
+                if (size < 1)
+                    return true;
+            }
+            allocation = allocate(size, true);
+        }
+    }
+
+    private boolean runRound(long[] allocation) {
+        List<Split> round = new ArrayList<>();
+        for (int h = 0; h < strata.length; h++) {
+            for (long i = 0; i < allocation[h]; i++) {
+                Split s = strata[h].draw();
+                if (null == s)
+                    break;
+                round.add(s);
+            }
+        }
+        metrics.addPlanned(round.size());
+        SplitListener collector = (split, count) -> ((SampleUnit) split.getOwner()).count.add(count);
+        pipeline.addListener(collector);
+        boolean ok = pipeline.run(round.iterator());
+        pipeline.removeListener(collector);
+        if (!ok)
+            return false;
+        for (Split s : round) {
+            SampleUnit u = (SampleUnit) s.getOwner();
+            double c = u.count.sum();
+            u.stratum.sum += c;
+            u.stratum.sumSquares += c * c;
+        }
+        sampled += round.size();
+        return true;
+    }
+
+    private void computeEstimate() {
+        double total = 0;
+        double variance = 0;
+        for (Stratum st : strata) {
+            long n = st.n();
+            if (0 == n)
+                continue;
+            total += st.size * st.mean();
+            variance += (double) st.size * st.size * (1 - (double) n / st.size) * st.variance() / n;
+        }
+        estimate = total;
+        halfWidth = z * Math.sqrt(variance);
+    }
+
+    // Sample size that should reach the target error, at most doubling each round
+    private long nextRoundSize() {
+        double sumNs = 0;
+        double sumNs2 = 0;
+        for (Stratum st : strata) {
+            double sd = Math.sqrt(st.variance());
+            sumNs += st.size * sd;
+            sumNs2 += st.size * sd * sd;
+        }
+        double targetVariance = Math.pow(Math.max(targetError, 1e-6) * Math.abs(estimate) / z, 2);
+        double needed = (sumNs * sumNs) / (targetVariance + sumNs2);
+        long more = (long) Math.ceil(needed) - sampled;
+        return Math.max(strata.length, Math.min(more, Math.max(sampled, 1)));
+    }
+
+    // Shares total out among the strata by Neyman allocation or by
+    // estimated size, rounding so the shares add up to total
+    private long[] allocate(long total, boolean neyman) {
+        int k = strata.length;
+        double[] weight = new double[k];
+        double sum = 0;
+        for (int h = 0; h < k; h++) {
+            weight[h] = neyman ? strata[h].size * Math.sqrt(strata[h].variance()) : strata[h].weight;
+            sum += weight[h];
+        }
+        if (0 == sum) {
+            for (int h = 0; h < k; h++)
+                weight[h] = strata[h].size;
+            sum = plan.getTotalSplits();
+        }
+        long[] allocation = new long[k];
+        Integer[] byRemainder = new Integer[k];
+        final double[] remainder = new double[k];
+        long given = 0;
+        for (int h = 0; h < k; h++) {
+            double share = total * weight[h] / sum;
+            allocation[h] = (long) share;
+            remainder[h] = share - allocation[h];
+            given += allocation[h];
+            byRemainder[h] = h;
+        }
+        Arrays.sort(byRemainder, (a, b) -> Double.compare(remainder[b], remainder[a]));
+        for (int i = 0; (given < total) && (i < k); i++, given++)
+            allocation[byRemainder[i]]++;
+        // Two samples per stratum are needed for a variance
+        for (int h = 0; h < k; h++)
+            allocation[h] = Math.max(allocation[h], 2 - strata[h].n());
+        return allocation;
+    }
+
+    public double getEstimate() {
+        return estimate;
+    }
+
+    public double getHalfWidth() {
+        return halfWidth;
+    }
+
+    public long getSampled() {
+        return sampled;
+    }
+
+    /**
+     * Inverse of the standard normal CDF (Abramowitz and Stegun 26.2.23,
+     * error below 4.5e-4), for p in (0.5, 1).
+     */
+    static double normalQuantile(double p) {
+        double t = Math.sqrt(-2 * Math.log(1 - p));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+                / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AIMD limit on the number of split queries in flight.  Every split
+ * that comes back within the target latency adds 1/limit to the limit
+ * (about +1 per round trip), up to maxLimit.  A split slower than the
+ * target shrinks the limit by 10%, and a timeout or overload error
+ * halves it.  Only one decrease is applied per round trip: a signal
+ * from a query sent before the last decrease is ignored, since that
+ * query was sent at the old limit.
+ *
+ * Permits are taken by a single submitting thread and returned from
+ * the driver's callbacks, which wake the submitter if it is parked.
+ * The callbacks take no lock: the limit is a fixed-point AtomicLong
+ * raised by compare-and-set, and a decrease first claims the round
+ * trip by compare-and-set on the time of the last decrease.
+ */
+public class ConcurrencyController {
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double ERROR_BACKOFF = 0.5;
+    private static final double EWMA_ALPHA = 0.1;
+    // The limit is kept in units of 1/ONE, so 1/limit steps are exact enough
+    private static final long ONE = 1L << 20;
+
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final int debug;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong limit;
+    private final AtomicLong latencyEwmaNanos = new AtomicLong(0);
+    private final AtomicLong lastDecreaseNanos;
+    private volatile Thread waiter = null;
+
+    /**
+     * targetLatencyMillis of 0 means only errors shrink the limit, and
+     * the limit starts at maxLimit.  Otherwise it starts at a quarter
+     * of maxLimit and probes upward.
+     */
+    public ConcurrencyController(int maxLimit, long targetLatencyMillis, int debug) {
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.debug = debug;
+        this.limit = new AtomicLong(ONE * ((0 == targetLatencyMillis) ? maxLimit : Math.max(1, (maxLimit + 3) / 4)));
+        this.lastDecreaseNanos = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int cur = inFlight.get();
+            if (cur >= getLimit())
+                return false;
+            if (inFlight.compareAndSet(cur, cur + 1))
+                return true;
+        }
+    }
+
+    public void acquire() {
+        while (!tryAcquire()) {
+            waiter = Thread.currentThread();
+            if (tryAcquire())
+                break;
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        waiter = null;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+        wakeWaiter();
+    }
+
+    /**
+     * Blocks until every permit has been returned.
+     */
+    public void awaitIdle() {
+        while (0 < inFlight.get()) {
+            waiter = Thread.currentThread();
+            if (0 == inFlight.get())
+                break;
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        waiter = null;
+    }
+
+    private void wakeWaiter() {
+        Thread w = waiter;
+        if (null != w)
+            LockSupport.unpark(w);
+    }
+
+    public void onSuccess(long startNanos, long latencyNanos) {
+        long ewma;
+        long next;
+        do {
+            ewma = latencyEwmaNanos.get();
+            next = (0 == ewma) ? latencyNanos : ewma + (long) (EWMA_ALPHA * (latencyNanos - ewma));
+        } while (!latencyEwmaNanos.compareAndSet(ewma, next));
+        if ((0 < targetLatencyNanos) && (latencyNanos > targetLatencyNanos)) {
+            decrease(startNanos, LATENCY_BACKOFF, "latency");
+            return;
+        }
+        long cur;
+        do {
+            cur = limit.get();
+            next = Math.min(ONE * maxLimit, cur + ONE * ONE / cur);
+        } while ((next != cur) && !limit.compareAndSet(cur, next));
+        if (cur / ONE != next / ONE) {
+            Debug.print(debug, "Concurrency limit " + cur / ONE + " -> " + next / ONE + " (latency " + getLatencyMillis() + " ms)", true, 2);
+            wakeWaiter();
+        }
+    }
+
+    public void onOverload(long startNanos) {
+        decrease(startNanos, ERROR_BACKOFF, "error");
+    }
+
+    private void decrease(long startNanos, double factor, String reason) {
+        // Only the first signal from queries sent since the last decrease wins
+        long last = lastDecreaseNanos.get();
+        if ((startNanos - last < 0) || !lastDecreaseNanos.compareAndSet(last, System.nanoTime()))
+            return;
+        long cur;
+        long next;
+        do {
+            cur = limit.get();
+            next = Math.max(ONE, (long) (cur * factor));
+        } while (!limit.compareAndSet(cur, next));
+        Debug.print(debug, "Concurrency limit " + cur / ONE + " -> " + next / ONE + " on " + reason
+                + " (latency " + getLatencyMillis() + " ms)", true, 1);
+    }
+
+    public int getLimit() {
+        return (int) (limit.get() / ONE);
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latencyEwmaNanos.get());
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * What each token range cost to count in earlier runs, per table, and
+ * split plans cut from it so every split costs about the same.
+ *
+ * The file holds one "table begin end rows micros" line per range
+ * counted, non-overlapping, and one "mode table query" line per table
+ * naming the query the ranges were counted with.  Table names are
+ * URL-encoded, as quoted names may hold spaces.  Ranges counted by a
+ * new run replace the ones they overlap when the run is saved; the rest
+ * of the history is kept, so a partial run (a shard, a token range)
+ * only refreshes its own part of the ring.  A run with a different
+ * query (another -where, -countPartitions or -engine) costs differently,
+ * so its ranges replace the table's whole history.
+ *
+ * The cost of a range is the latency of the query that counted it.
+ * Inside a recorded range the cost is taken to be spread evenly over
+ * its tokens.
+ */
+public class CostProfile {
+    private static final String HEADER = "#cassandra-count-profile";
+    private static final long UNCOVERED = -1;
+
+    private static class Range {
+        final BigInteger begin;
+        final BigInteger end;
+        final long rows;
+        final long micros;
+
+        Range(BigInteger begin, BigInteger end, long rows, long micros) {
+            this.begin = begin;
+            this.end = end;
+            this.rows = rows;
+            this.micros = micros;
+        }
+    }
+
+    private final File file;
+    private final int debug;
+    private final Map<String, NavigableMap<BigInteger, Range>> history = new HashMap<>();
+    private final Map<String, String> modes = new HashMap<>();
+    private final Map<String, Queue<Range>> recorded = new HashMap<>();
+    private final Map<String, String> recordedModes = new HashMap<>();
+
+    public CostProfile(File file, int debug) {
+        this.file = file;
+        this.debug = debug;
+    }
+
+    /**
+     * Reads the history, if the file exists.
+     */
+    public void load() throws IOException {
+        history.clear();
+        modes.clear();
+        if (!file.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if ((null == line) || !line.equals(HEADER))
+                throw new IOException(file + " is not a cost profile");
+            while (null != (line = reader.readLine())) {
+                if (line.startsWith("mode ")) {
+                    String[] m = line.split(" ", 3);
+                    if (3 != m.length)
+                        throw new IOException("Bad line in " + file + ": " + line);
+                    modes.put(URLDecoder.decode(m[1], "UTF-8"), m[2]);
+                    continue;
+                }
+                String[] f = line.trim().split("\\s+");
+                if (5 != f.length)
+                    throw new IOException("Bad line in " + file + ": " + line);
+                try {
+                    Range r = new Range(new BigInteger(f[1]), new BigInteger(f[2]), Long.parseLong(f[3]), Long.parseLong(f[4]));
+                    tableHistory(URLDecoder.decode(f[0], "UTF-8")).put(r.begin, r);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Bad line in " + file + ": " + line);
+                }
+            }
+        }
+    }
+
+    private NavigableMap<BigInteger, Range> tableHistory(String table) {
+        return history.computeIfAbsent(table, k -> new TreeMap<>());
+    }
+
+    /**
+     * Times every split the executor counts successfully for table with
+     * the query mode.
+     */
+    public SplitExecutor record(final String table, String mode, final SplitExecutor executor) {
+        final Queue<Range> ranges;
+        synchronized (recorded) {
+            ranges = recorded.computeIfAbsent(table, k -> new ConcurrentLinkedQueue<>());
+            recordedModes.put(table, mode);
+        }
+        return split -> {
+            final long startNanos = System.nanoTime();
+            ListenableFuture<Long> future = executor.execute(split);
+            Futures.addCallback(future, new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long count) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                    ranges.add(new Range(new BigInteger(split.beginString()), new BigInteger(split.endString()), count, micros));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                }
+            });
+            return future;
+        };
+    }
+
+    /**
+     * A plan over the same ranges as base, cut so each split costs about
+     * the same: costly recorded ranges are cut evenly into several
+     * splits and runs of cheap ones are merged.  Splits of base not
+     * wholly covered by the history are kept as they are, and the rest
+     * of the about numSplits splits, or as many as the ranges recorded
+     * if that is more, are cut from the history, so ranges that had to
+     * be bisected stay cut finer.  Returns null if the history covers
+     * none of base or was recorded with a query other than mode.
+     */
+    public SplitPlan plan(String table, String mode, SplitPlan base, long numSplits) {
+        NavigableMap<BigInteger, Range> ranges = history.get(table);
+        if (null == ranges)
+            return null;
+        if (!mode.equals(modes.get(table))) {
+            Debug.print(debug, "Cost profile of " + table + " was recorded with another query; not used", true, 1);
+            return null;
+        }
+        // The pieces of each segment
+        List<List<Range>> parts = new ArrayList<>();
+        long numPieces = 0;
+        long numKept = 0;
+        double total = 0;
+        for (int seg = 0; seg < base.getNumSegments(); seg++) {
+            List<Range> pieces = clip(ranges, base.segment(seg));
+            if (null == pieces) {
+                Debug.print(debug, "Cost profile does not cover all of " + base.segment(seg) + " of " + table, true, 2);
+                pieces = new ArrayList<>();
+                numKept += keepUncovered(ranges, base, seg, pieces);
+            }
+            for (Range p : pieces) {
+                if (p.micros < 0)
+                    continue;
+                total += p.micros;
+                numPieces++;
+            }
+            parts.add(pieces);
+        }
+        if (0 >= total)
+            return null;
+
+        double target = total / Math.max(numSplits - numKept, numPieces);
+        SplitPlan plan = new SplitPlan(base.isWide());
+        for (List<Range> pieces : parts)
+            merge(pieces, target, plan);
+        Debug.print(debug, String.format("Cost profile: %d splits of about %.1f ms each, %d kept from the usual plan",
+                plan.getTotalSplits(), target / 1e3, numKept), true, 1);
+        return plan;
+    }
+
+    /**
+     * Adds one segment's pieces to plan: those costing target or more
+     * cut evenly, runs of cheaper ones that touch merged up to target.
+     * Merges never cross a kept split or the end of the segment, so a
+     * split stays inside one token range.
+     */
+    private static void merge(List<Range> pieces, double target, SplitPlan plan) {
+        BigInteger begin = null;
+        BigInteger end = null;
+        double cost = 0;
+        for (Range p : pieces) {
+            if ((null != begin) && ((p.micros < 0) || (p.micros >= target) || !p.begin.equals(end))) {
+                plan.add(begin, end, 1);
+                begin = null;
+                cost = 0;
+            }
+            if (p.micros < 0) {
+                plan.add(p.begin, p.end, 1);
+                continue;
+            }
+            if (p.micros >= target) {
+                plan.add(p.begin, p.end, Math.max(1, Math.round(p.micros / target)));
+                continue;
+            }
+            if (null == begin)
+                begin = p.begin;
+            end = p.end;
+            cost += p.micros;
+            if (cost >= target) {
+                plan.add(begin, end, 1);
+                begin = null;
+                cost = 0;
+            }
+        }
+        if (null != begin)
+            plan.add(begin, end, 1);
+    }
+
+    /**
+     * Adds to parts, in order, the history pieces of the runs of the
+     * segment's splits the history covers, and each split it does not
+     * cover as a range of cost UNCOVERED.  Returns the number of splits
+     * kept.
+     */
+    private static long keepUncovered(NavigableMap<BigInteger, Range> ranges, SplitPlan base, int seg, List<Range> parts) {
+        long kept = 0;
+        Split run = null;
+        for (long i = 0; i < base.getNumSplits(seg); i++) {
+            Split s = base.split(seg, i);
+            if (null != clip(ranges, s)) {
+                run = (null == run) ? s : new Split(new BigInteger(run.beginString()), new BigInteger(s.endString()));
+                continue;
+            }
+            if (null != run)
+                parts.addAll(clip(ranges, run));
+            run = null;
+            parts.add(new Range(new BigInteger(s.beginString()), new BigInteger(s.endString()), 0, UNCOVERED));
+            kept++;
+        }
+        if (null != run)
+            parts.addAll(clip(ranges, run));
+        return kept;
+    }
+
+    /**
+     * The history ranges overlapping the segment, cut to it, with their
+     * cost scaled to the part kept.  Null if part of the segment was
+     * never counted.
+     */
+    private static List<Range> clip(NavigableMap<BigInteger, Range> ranges, Split segment) {
+        BigInteger begin = new BigInteger(segment.beginString());
+        BigInteger end = new BigInteger(segment.endString());
+        BigInteger from = ranges.floorKey(begin);
+        List<Range> pieces = new ArrayList<>();
+        BigInteger covered = begin;
+        for (Range r : ranges.tailMap((null != from) ? from : begin, true).values()) {
+            if (0 <= r.begin.compareTo(end))
+                break;
+            if (0 >= r.end.compareTo(begin))
+                continue;
+            if (0 < r.begin.compareTo(covered))
+                return null;
+            BigInteger b = r.begin.max(begin);
+            BigInteger e = r.end.min(end);
+            double share = new BigDecimal(e.subtract(b)).doubleValue()
+                    / new BigDecimal(r.end.subtract(r.begin)).doubleValue();
+            pieces.add(new Range(b, e, Math.round(r.rows * share), Math.round(r.micros * share)));
+            covered = e;
+        }
+        return (0 <= covered.compareTo(end)) ? pieces : null;
+    }
+
+    /**
+     * Replaces the history overlapped by the ranges recorded since the
+     * last save, then rewrites the file.  The file is written next to
+     * the target and renamed over it, so it is never left half written.
+     */
+    public synchronized void save() throws IOException {
+        synchronized (recorded) {
+            for (Map.Entry<String, Queue<Range>> e : recorded.entrySet()) {
+                TreeMap<BigInteger, Range> fresh = new TreeMap<>();
+                for (Range r; null != (r = e.getValue().poll()); )
+                    fresh.put(r.begin, r);
+                if (fresh.isEmpty())
+                    continue;
+                NavigableMap<BigInteger, Range> ranges = tableHistory(e.getKey());
+                String mode = recordedModes.get(e.getKey());
+                if (!mode.equals(modes.put(e.getKey(), mode)))
+                    ranges.clear();
+                ranges.values().removeIf(r -> overlaps(fresh, r));
+                ranges.putAll(fresh);
+                Debug.print(debug, "Cost profile: " + fresh.size() + " ranges of " + e.getKey() + " recorded", true, 1);
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(tmp, "UTF-8")) {
+            out.println(HEADER);
+            for (Map.Entry<String, NavigableMap<BigInteger, Range>> e : history.entrySet()) {
+                if (e.getValue().isEmpty())
+                    continue;
+                String table = URLEncoder.encode(e.getKey(), "UTF-8");
+                out.println("mode " + table + " " + modes.get(e.getKey()));
+                for (Range r : e.getValue().values())
+                    out.println(table + " " + r.begin + " " + r.end + " " + r.rows + " " + r.micros);
+            }
+            if (out.checkError())
+                throw new IOException("Error writing " + tmp);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The fresh ranges do not overlap each other, so only the last one
+    // beginning before r ends can overlap r
+    private static boolean overlaps(TreeMap<BigInteger, Range> fresh, Range r) {
+        Map.Entry<BigInteger, Range> e = fresh.lowerEntry(r.end);
+        return (null != e) && (0 < e.getValue().end.compareTo(r.begin));
+    }
+}
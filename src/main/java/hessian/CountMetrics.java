@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and a split latency histogram for one count.  Recording is
+ * a handful of LongAdder and AtomicLongArray increments, with no
+ * allocation, so it is cheap enough to call from every driver
+ * callback.  report() and writePrometheus() read a snapshot.
+ *
+ * The histogram has SUB_BUCKETS log-linear buckets per power of two of
+ * microseconds, so percentiles are accurate to about 12%.
+ */
+public class CountMetrics {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+    private final String keyspace;
+    private final String table;
+    private final ConcurrencyController limiter;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder splitsTotal = new LongAdder();
+    private final LongAdder splitsDone = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bisections = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder latencySumMicros = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private final LongAccumulator latencyMaxMicros = new LongAccumulator(Math::max, 0);
+
+    // Values at the previous report(), for interval rates
+    private long lastReportNanos = startNanos;
+    private long lastReportRows = 0;
+    private long lastReportSplits = 0;
+
+    public CountMetrics(String keyspace, String table, long splitsTotal, ConcurrencyController limiter) {
+        this.keyspace = keyspace;
+        this.table = table;
+        this.limiter = limiter;
+        this.splitsTotal.add(splitsTotal);
+    }
+
+    public void recordSuccess(long latencyNanos, long count) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        latencyBuckets.incrementAndGet(bucket(micros));
+        latencySumMicros.add(micros);
+        latencyCount.increment();
+        latencyMaxMicros.accumulate(micros);
+        rows.add(count);
+        splitsDone.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * A speculative second attempt was sent for a slow query.
+     */
+    public void recordHedge() {
+        hedges.increment();
+    }
+
+    public void addPlanned(long splits) {
+        splitsTotal.add(splits);
+    }
+
+    /**
+     * A bisected split turns one planned split into two.
+     */
+    public void recordBisection() {
+        bisections.increment();
+        splitsTotal.increment();
+    }
+
+    /**
+     * A planned split that -resume found already counted.  partsLeft
+     * is how many uncovered pieces of it are still to be counted.
+     */
+    public void recordResumed(int partsLeft) {
+        if (0 == partsLeft)
+            splitsDone.increment();
+        else
+            splitsTotal.add(partsLeft - 1);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Upper bound, in microseconds, of the values counted in a bucket
+    private static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Latency at the given quantile (0 to 1), in microseconds.
+     */
+    public long latencyMicros(double quantile) {
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            total += latencyBuckets.get(i);
+        if (0 == total)
+            return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= Math.max(1, rank))
+                return Math.min(bucketLimit(i), latencyMaxMicros.get());
+        }
+        return latencyMaxMicros.get();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getBisections() {
+        return bisections.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getSplitsDone() {
+        return splitsDone.sum();
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    // Seconds left at the average split rate so far, or -1 if unknown
+    private long etaSeconds(long done, long total, double secs) {
+        if ((0 == done) || (0 >= secs))
+            return -1;
+        return (long) ((total - done) / (done / secs));
+    }
+
+    /**
+     * One progress line.  Rates are over the time since the previous
+     * call; the ETA uses the average split rate since the start.
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long done = splitsDone.sum();
+        long total = splitsTotal.sum();
+        long r = rows.sum();
+        double interval = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        double rowRate = (r - lastReportRows) / interval;
+        double splitRate = (done - lastReportSplits) / interval;
+        lastReportNanos = now;
+        lastReportRows = r;
+        lastReportSplits = done;
+
+        long eta = etaSeconds(done, total, elapsedSeconds());
+        StringBuilder sb = new StringBuilder("Progress: ");
+        sb.append(done).append("/").append(total).append(" splits");
+        sb.append(String.format(" (%.1f%%)", (0 == total) ? 100.0 : 100.0 * done / total));
+        sb.append(", ").append(r).append(" rows");
+        sb.append(String.format(", %.0f rows/s, %.1f splits/s", rowRate, splitRate));
+        sb.append(", ETA ").append((0 > eta) ? "?" : formatSeconds(eta));
+        sb.append(String.format(", latency p50 %.1f ms p99 %.1f ms max %.1f ms",
+                latencyMicros(0.5) / 1e3, latencyMicros(0.99) / 1e3, latencyMaxMicros.get() / 1e3));
+        sb.append(", retries ").append(retries.sum()).append(", timeouts ").append(timeouts.sum());
+        if (null != limiter)
+            sb.append(", in-flight ").append(limiter.getInFlight()).append("/").append(limiter.getLimit());
+        return sb.toString();
+    }
+
+    private static String formatSeconds(long secs) {
+        return String.format("%d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.  The
+     * file is written next to the target and renamed over it, so a
+     * scraper never sees a partial file.
+     */
+    public void writePrometheus(File file) throws IOException {
+        long done = splitsDone.sum();
+        long total = splitsTotal.sum();
+        long r = rows.sum();
+        double secs = elapsedSeconds();
+        String labels = "keyspace=\"" + escape(keyspace) + "\",table=\"" + escape(table) + "\"";
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(tmp, "UTF-8")) {
+            gauge(out, "cassandra_count_splits_planned", "Splits planned, including bisected halves", labels, total);
+            counter(out, "cassandra_count_splits_done_total", "Splits counted", labels, done);
+            counter(out, "cassandra_count_rows_total", "Rows counted so far", labels, r);
+            gauge(out, "cassandra_count_rows_per_second", "Average rows per second since the start", labels, (0 < secs) ? r / secs : 0);
+            gauge(out, "cassandra_count_splits_per_second", "Average splits per second since the start", labels, (0 < secs) ? done / secs : 0);
+            gauge(out, "cassandra_count_eta_seconds", "Estimated seconds left, -1 if unknown", labels, etaSeconds(done, total, secs));
+            counter(out, "cassandra_count_retries_total", "Split retries", labels, retries.sum());
+            counter(out, "cassandra_count_timeouts_total", "Split timeouts", labels, timeouts.sum());
+            counter(out, "cassandra_count_hedges_total", "Speculative second attempts sent", labels, hedges.sum());
+            if (null != limiter) {
+                gauge(out, "cassandra_count_in_flight", "Split queries in flight", labels, limiter.getInFlight());
+                gauge(out, "cassandra_count_in_flight_limit", "Current in-flight limit", labels, limiter.getLimit());
+            }
+            out.println("# HELP cassandra_count_split_latency_seconds Split query latency");
+            out.println("# TYPE cassandra_count_split_latency_seconds summary");
+            for (double q : new double[]{0.5, 0.99})
+                out.println("cassandra_count_split_latency_seconds{" + labels + ",quantile=\"" + q + "\"} " + latencyMicros(q) / 1e6);
+            out.println("cassandra_count_split_latency_seconds_sum{" + labels + "} " + latencySumMicros.sum() / 1e6);
+            // Splits found done by -resume have no latency sample
+            out.println("cassandra_count_split_latency_seconds_count{" + labels + "} " + latencyCount.sum());
+            gauge(out, "cassandra_count_split_latency_seconds_max", "Slowest split query", labels, latencyMaxMicros.get() / 1e6);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A label value, with backslash, double quote and newline escaped
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, String labels, double value) {
+        metric(out, name, help, "gauge", labels, value);
+    }
+
+    private static void counter(PrintWriter out, String name, String help, String labels, double value) {
+        metric(out, name, help, "counter", labels, value);
+    }
+
+    private static void metric(PrintWriter out, String name, String help, String type, String labels, double value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+        out.println(name + "{" + labels + "} " + value);
+    }
+}
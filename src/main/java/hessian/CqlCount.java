@@ -29,39 +29,52 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
 
-import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ColumnMetadata;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.JdkSSLOptions;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Metadata;
 import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.QueryOptions;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.SSLOptions;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.Token;
 import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
 import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
 
 public class CqlCount {
     private final String version = "0.0.6";
-    private final String minToken = "-9223372036854775808";
-    private final String maxToken = "9223372036854775807";
     private String host = null;
     private int port = 9042;
     private String username = null;
@@ -83,9 +96,55 @@ public class CqlCount {
     private String tableName = null;
     private long splitSize = 2 * 1024 * 1024;
     private int debug = 0;
+    private boolean pipelineStats = false;
+    private int progressInterval = 0;
+    private String metricsFile = null;
+    private int maxRetries = 5;
+    private long retryBackoff = 100;
+    private BigInteger minSplitWidth = BigInteger.valueOf(1L << 20);
+    private long targetLatency = 0;
+    private int numFuturesPerHost = 0;
+    private String journalFile = null;
+    private String resumeFile = null;
+    private double approxError = -1;
+    private long approxTime = 0;
+    private double approxConfidence = 0.95;
+    private int approxSample = 1000;
+    private int approxStrata = 100;
+    private String countPartitions = "false";
+    private int fetchSize = 5000;
+    private String engine = "count";
+    private String skewReportFile = null;
+    private int topN = 10;
+    private String diffHost = null;
+    private int diffPort = 0;
+    private String diffLocalDc = null;
+    private ConsistencyLevel diffConsistencyLevel = null;
+    private BigInteger diffMinWidth = BigInteger.ONE;
+    private Cluster diffCluster = null;
+    private Session diffSession = null;
+    private double hedgePercentile = 0;
+    private double hedgeBudget = 0.05;
+    private HedgingPolicy hedging = null;
+    private int shard = 0;
+    private int numShards = 0;
+    private String shardResultFile = null;
+    private String whereClause = null;
+    private RowFilter clientFilter = null;
+    private String writetimeColumn = null;
+    private boolean countBytes = false;
+    private int daemonPort = 0;
+    private boolean fastStart = false;
+    private TokenRing ring = null;
+    private final Map<String, List<String>> partitionKeys = new HashMap<>();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private String profileFile = null;
+    private CostProfile profile = null;
+    private final Map<String, SplitPlan> planCache = new HashMap<>();
+    private final Map<String, SplitExecutor> executorCache = new HashMap<>();
+    private Set<TokenRange> cachedRing = null;
 
-    private List<Token> beginTokens;
-    private List<Token> endTokens;
+    private SplitPlan plan;
 
     // -host recob101.us.taboolasyndication.com -keyspace trc -table recommendationsv3 -readTimeout 1200000 -connectTimeout 500000 -debug 2 -numSplits 143370
     public static void main(String[] args)
@@ -93,7 +152,11 @@ public class CqlCount {
             KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException,
             CertificateException, KeyManagementException {
         CqlCount cc = new CqlCount();
-        boolean success = cc.run(args);
+        boolean success;
+        if ((0 < args.length) && "merge".equals(args[0]))
+            success = new ShardMerge().run(Arrays.copyOfRange(args, 1, args.length));
+        else
+            success = cc.run(args);
         if (success) {
             System.exit(0);
         } else {
@@ -103,7 +166,9 @@ public class CqlCount {
 
     private String usage() {
         StringBuilder usage = new StringBuilder("version: ").append(version).append("\n");
-        usage.append("Usage: -host <ipaddress> -keyspace <ks> -table <tableName> [OPTIONS]\n");
+        usage.append("Usage: -host <ipaddress> -keyspace <ks> -table <tableName>[,<tableName>...] [OPTIONS]\n");
+        usage.append("       -daemon <port> -host <ipaddress> [-keyspace <ks>] [OPTIONS]\n");
+        usage.append("       merge <shardResult> [<shardResult> ...]\n");
         usage.append("OPTIONS:\n");
         usage.append("  -configFile <filename>         File with configuration options [none]\n");
         usage.append("  -port <portNumber>             CQL Port Number [9042]\n");
@@ -116,12 +181,47 @@ public class CqlCount {
         usage.append("  -consistencyLevel <CL>         Consistency level [LOCAL_ONE]\n");
         usage.append("  -beginToken <tokenString>      Begin token [none]\n");
         usage.append("  -endToken <tokenString>        End token [none]\n");
-        usage.append("  -numFutures <numfutures>       Number of futures [100]\n");
+        usage.append("  -numFutures <numfutures>       Maximum number of futures in flight [100]\n");
+        usage.append("  -numFuturesPerHost <num>       Maximum number of futures in flight per replica, 0 for no limit [0]\n");
+        usage.append("  -targetLatency <ms>            Per-split latency the in-flight limit adapts to, 0 to adapt to errors only [0]\n");
         usage.append("  -numSplits <numsplits>         Number of total splits (0 for <number of tokens>, -1 for size-related generated splits) [number of tokens]\n");
         usage.append("  -splitSize <splitSize>         Split size in MBs [2]\n");
         usage.append("  -readTimeout <readTimeout>     read timeout in millisecond [12000]\n");
         usage.append("  -connectTimeout <connectTimeout> connect timeout in millisecond [5000]\n");
         usage.append("  -debug <0|1|2>                 Print debug messages [0]\n");
+        usage.append("  -journal <filename>            Record completed splits to this file [none]\n");
+        usage.append("  -resume <filename>             Skip the splits recorded in this journal, and keep appending to it [none]\n");
+        usage.append("  -progress <seconds>            Print progress, rates, ETA and latency this often, 0 for never [0]\n");
+        usage.append("  -metricsFile <filename>        Write Prometheus metrics to this file every -progress seconds (10 if not set) [none]\n");
+        usage.append("  -pipelineStats <true|false>    Print in-flight slot occupancy and throughput [false]\n");
+        usage.append("  -maxRetries <retries>          Retries per split before giving up [5]\n");
+        usage.append("  -retryBackoff <ms>             Initial retry backoff in millisecond, doubled per attempt [100]\n");
+        usage.append("  -minSplitWidth <tokens>        Smallest range a timed-out split is bisected down to [1048576]\n");
+        usage.append("  -countPartitions <false|true|both> Count partitions, or rows and partitions, by paging through partition keys [false]\n");
+        usage.append("  -engine <count|paged|auto>     Count rows with COUNT(*), by paging, or by paging splits whose COUNT(*) times out [count]\n");
+        usage.append("  -fetchSize <rows>              Page size when paging through a split [5000]\n");
+        usage.append("  -where <predicate>             Count only the rows matching this CQL predicate, e.g. \"status = 'X'\" [none]\n");
+        usage.append("  -writetime <column>            Also report the oldest and newest WRITETIME() of this column [none]\n");
+        usage.append("  -bytes <true|false>            Also report the total size of the values read, by paging through every column [false]\n");
+        usage.append("  -skewReport <filename>         Write rows per split, densest splits and widest partitions as CSV, or JSON for *.json [none]\n");
+        usage.append("  -topN <num>                    Splits and partitions listed in the -skewReport [10]\n");
+        usage.append("  -hedge <percentile>            Send a second attempt to another replica for queries slower than this split latency percentile, 0 for never [0]\n");
+        usage.append("  -hedgeBudget <fraction>        Largest fraction of queries that may be hedged [0.05]\n");
+        usage.append("  -diffHost <ipaddress>          Count the same splits on this cluster too and list the token ranges that differ [none]\n");
+        usage.append("  -diffPort <portNumber>         CQL Port Number of -diffHost [-port]\n");
+        usage.append("  -diffLocalDc <dc>              Data center to count in on the -diffHost side [data center of -diffHost]\n");
+        usage.append("  -diffConsistencyLevel <CL>     Consistency level on the -diffHost side [-consistencyLevel]\n");
+        usage.append("  -diffMinWidth <tokens>         Stop bisecting differing ranges below twice this width [1]\n");
+        usage.append("  -shard <i>/<N>                 Count only the i-th of N equal parts of the split plan (1 <= i <= N) [none]\n");
+        usage.append("  -shardResult <filename>        Write the count, ranges covered and any error here, for merge [none]\n");
+        usage.append("  -fastStart <true|false>        Skip the driver's schema and token metadata; read the ring and key from system tables [false]\n");
+        usage.append("  -profile <filename>            Record what each range cost to count here, and plan splits of equal cost from it [none]\n");
+        usage.append("  -daemon <port>                 Keep the session open and count tables asked for on this local HTTP port [none]\n");
+        usage.append("  -approx <relativeError>        Estimate from a sample of splits until within this relative error, 0 for one round [none]\n");
+        usage.append("  -approxTime <seconds>          Stop sampling after this long, 0 for no limit [0]\n");
+        usage.append("  -approxConfidence <level>      Confidence level of the -approx interval [0.95]\n");
+        usage.append("  -approxSample <numsplits>      Splits counted in the first -approx round [1000]\n");
+        usage.append("  -approxStrata <num>            Token-order strata the -approx sample is spread over [100]\n");
         return usage.toString();
     }
 
@@ -173,6 +273,15 @@ public class CqlCount {
             System.err.println("If you supply the endToken then you need to specify the beginToken");
             return false;
         }
+        if (null != beginTokenString) {
+            try {
+                new BigInteger(beginTokenString);
+                new BigInteger(endTokenString);
+            } catch (NumberFormatException e) {
+                System.err.println("beginToken and endToken must be integers");
+                return false;
+            }
+        }
         if (numFutures < 1) {
             System.err.println("numFutures must be positive");
             return false;
@@ -186,6 +295,144 @@ public class CqlCount {
             return false;
         }
 
+        if ((null != journalFile) && (null != resumeFile) && !journalFile.equals(resumeFile)) {
+            System.err.println("-resume appends to the journal it resumes from, so -journal must be the same file or omitted");
+            return false;
+        }
+        if ((null == resumeFile) && (null != journalFile) && (0 < new File(journalFile).length())) {
+            System.err.println("Journal " + journalFile + " already exists; use -resume to continue from it");
+            return false;
+        }
+        if ((null != resumeFile) && !new File(resumeFile).isFile()) {
+            System.err.println("Resume journal must be a file");
+            return false;
+        }
+        if (numFuturesPerHost < 0) {
+            System.err.println("numFuturesPerHost must be non-negative");
+            return false;
+        }
+        if (targetLatency < 0) {
+            System.err.println("targetLatency must be non-negative");
+            return false;
+        }
+        if (progressInterval < 0) {
+            System.err.println("progress must be non-negative");
+            return false;
+        }
+        if (maxRetries < 0) {
+            System.err.println("maxRetries must be non-negative");
+            return false;
+        }
+        if (retryBackoff < 0) {
+            System.err.println("retryBackoff must be non-negative");
+            return false;
+        }
+        if (minSplitWidth.signum() <= 0) {
+            System.err.println("minSplitWidth must be positive");
+            return false;
+        }
+
+        if (!"false".equals(countPartitions) && !"true".equals(countPartitions) && !"both".equals(countPartitions)) {
+            System.err.println("countPartitions must be false, true or both");
+            return false;
+        }
+        if ("both".equals(countPartitions) && ((null != journalFile) || (null != resumeFile) || (0 <= approxError))) {
+            System.err.println("-countPartitions both cannot be used with -journal, -resume or -approx");
+            return false;
+        }
+        if (!"count".equals(engine) && !"paged".equals(engine) && !"auto".equals(engine)) {
+            System.err.println("engine must be count, paged or auto");
+            return false;
+        }
+        if ((null != whereClause) && "true".equals(countPartitions)) {
+            System.err.println("-where cannot be used with -countPartitions true; use -countPartitions both");
+            return false;
+        }
+        if ((null != writetimeColumn) || countBytes) {
+            if (!"false".equals(countPartitions) || (0 <= approxError) || (null != diffHost) || (null != journalFile)
+                    || (null != resumeFile) || (null != shardResultFile) || (0 != daemonPort)) {
+                System.err.println("-writetime and -bytes cannot be used with -countPartitions, -approx, -diffHost, -journal, -resume, -shardResult or -daemon");
+                return false;
+            }
+        }
+        if (topN < 0) {
+            System.err.println("topN must be non-negative");
+            return false;
+        }
+        if (fetchSize < 1) {
+            System.err.println("fetchSize must be positive");
+            return false;
+        }
+
+        if ((hedgePercentile < 0) || (hedgePercentile >= 100)) {
+            System.err.println("hedge must be a percentile from 0 to below 100");
+            return false;
+        }
+        if ((hedgeBudget < 0) || (hedgeBudget > 1)) {
+            System.err.println("hedgeBudget must be between 0 and 1");
+            return false;
+        }
+
+        if ((0 < numShards) && ((shard < 1) || (shard > numShards))) {
+            System.err.println("shard must be i/N with 1 <= i <= N");
+            return false;
+        }
+        if ((0 < numShards) && (null == shardResultFile)) {
+            System.err.println("-shard needs a -shardResult file to merge");
+            return false;
+        }
+
+        if ((null != diffLocalDc) && (null == diffHost))
+            diffHost = host;
+        if (null != diffHost) {
+            if ((0 <= approxError) || (null != journalFile) || (null != resumeFile) || "both".equals(countPartitions)
+                    || (null != shardResultFile)) {
+                System.err.println("-diffHost cannot be used with -approx, -journal, -resume, -countPartitions both or -shardResult");
+                return false;
+            }
+            if (diffMinWidth.signum() <= 0) {
+                System.err.println("diffMinWidth must be positive");
+                return false;
+            }
+        }
+
+        if (0 <= approxError) {
+            if ((null != journalFile) || (null != resumeFile) || (null != shardResultFile)) {
+                System.err.println("-approx cannot be used with -journal, -resume or -shardResult");
+                return false;
+            }
+            if ((approxConfidence <= 0) || (approxConfidence >= 1)) {
+                System.err.println("approxConfidence must be between 0 and 1");
+                return false;
+            }
+            if ((approxSample < 1) || (approxStrata < 1) || (approxTime < 0)) {
+                System.err.println("approxSample and approxStrata must be positive, approxTime non-negative");
+                return false;
+            }
+        }
+
+        if (fastStart && ((0 != daemonPort) || (null != writetimeColumn) || countBytes)) {
+            System.err.println("-fastStart cannot be used with -daemon, -writetime or -bytes, which need the table's full schema");
+            return false;
+        }
+
+        if ((null != profileFile) && ((0 <= approxError) || (null != diffHost) || (0 < numShards))) {
+            System.err.println("-profile cannot be used with -approx, -diffHost or -shard");
+            return false;
+        }
+
+        if (0 != daemonPort) {
+            if ((0 > daemonPort) || (65535 < daemonPort)) {
+                System.err.println("daemon must be a port number");
+                return false;
+            }
+            if ((0 <= approxError) || (null != journalFile) || (null != resumeFile) || (null != diffHost)
+                    || (null != shardResultFile) || (null != skewReportFile) || "both".equals(countPartitions)) {
+                System.err.println("-daemon cannot be used with -approx, -journal, -resume, -diffHost, -shardResult, -skewReport or -countPartitions both");
+                return false;
+            }
+        }
+
         if ((2 < debug) || (0 > debug)) {
             System.err.println("Debug options are 0, 1, 2 (in increasing verbosity)");
             return false;
@@ -240,14 +487,17 @@ public class CqlCount {
             return false;
         }
 
-        keyspaceName = amap.remove("-keyspace");
-        if (null == keyspaceName) { // keyspace is required
+        // Counts are asked for over HTTP in -daemon mode, so -keyspace is a default and -table unused
+        if (null != (tkey = amap.remove("-daemon"))) daemonPort = Integer.parseInt(tkey);
+
+        keyspaceName = Identifiers.handleId(amap.remove("-keyspace"));
+        if ((null == keyspaceName) && (0 == daemonPort)) { // keyspace is required
             System.err.println("Must provide a keyspace name");
             return false;
         }
 
         tableName = amap.remove("-table");
-        if (null == tableName) { // table is required
+        if ((null == tableName) && (0 == daemonPort)) { // table is required
             System.err.println("Must provide a table name");
             return false;
         }
@@ -261,6 +511,8 @@ public class CqlCount {
         if (null != (tkey = amap.remove("-ssl-keystore-pwd"))) keystorePwd = tkey;
         if (null != (tkey = amap.remove("-consistencyLevel"))) consistencyLevel = ConsistencyLevel.valueOf(tkey);
         if (null != (tkey = amap.remove("-numFutures"))) numFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-numFuturesPerHost"))) numFuturesPerHost = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-targetLatency"))) targetLatency = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-numSplits"))) numSplits = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-splitSize"))) splitSize = Long.parseLong(tkey) * 1024 * 1024;
         if (null != (tkey = amap.remove("-beginToken"))) beginTokenString = tkey;
@@ -268,6 +520,46 @@ public class CqlCount {
         if (null != (tkey = amap.remove("-debug"))) debug = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-readTimeout"))) readTimeout = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-connectTimeout"))) connectTimeout = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-journal"))) journalFile = tkey;
+        if (null != (tkey = amap.remove("-resume"))) resumeFile = tkey;
+        if (null != (tkey = amap.remove("-progress"))) progressInterval = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-metricsFile"))) metricsFile = tkey;
+        if (null != (tkey = amap.remove("-pipelineStats"))) pipelineStats = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-maxRetries"))) maxRetries = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-retryBackoff"))) retryBackoff = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-minSplitWidth"))) minSplitWidth = new BigInteger(tkey);
+        if (null != (tkey = amap.remove("-countPartitions"))) countPartitions = tkey;
+        if (null != (tkey = amap.remove("-engine"))) engine = tkey;
+        if (null != (tkey = amap.remove("-fetchSize"))) fetchSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-where"))) whereClause = tkey;
+        if (null != (tkey = amap.remove("-writetime"))) writetimeColumn = tkey;
+        if (null != (tkey = amap.remove("-bytes"))) countBytes = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-skewReport"))) skewReportFile = tkey;
+        if (null != (tkey = amap.remove("-topN"))) topN = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-hedge"))) hedgePercentile = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-hedgeBudget"))) hedgeBudget = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-diffHost"))) diffHost = tkey;
+        if (null != (tkey = amap.remove("-diffPort"))) diffPort = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-diffLocalDc"))) diffLocalDc = tkey;
+        if (null != (tkey = amap.remove("-diffConsistencyLevel"))) diffConsistencyLevel = ConsistencyLevel.valueOf(tkey);
+        if (null != (tkey = amap.remove("-diffMinWidth"))) diffMinWidth = new BigInteger(tkey);
+        if (null != (tkey = amap.remove("-shard"))) {
+            String[] f = tkey.split("/");
+            if (2 != f.length) {
+                System.err.println("shard must be i/N");
+                return false;
+            }
+            shard = Integer.parseInt(f[0]);
+            numShards = Integer.parseInt(f[1]);
+        }
+        if (null != (tkey = amap.remove("-shardResult"))) shardResultFile = tkey;
+        if (null != (tkey = amap.remove("-fastStart"))) fastStart = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-profile"))) profileFile = tkey;
+        if (null != (tkey = amap.remove("-approx"))) approxError = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-approxTime"))) approxTime = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-approxConfidence"))) approxConfidence = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-approxSample"))) approxSample = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-approxStrata"))) approxStrata = Integer.parseInt(tkey);
 
         if (!amap.isEmpty()) {
             for (String k : amap.keySet())
@@ -304,30 +596,58 @@ public class CqlCount {
         return JdkSSLOptions.builder().withSSLContext(sslContext).build(); //SSLOptions.DEFAULT_SSL_CIPHER_SUITES);
     }
 
-    private void debugPrint(String str, boolean crlf, int level) {
-        if (debug >= level)
-            System.err.print(str + (crlf ? "\n" : ""));
-    }
-
     private void setup()
             throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
             CertificateException, UnrecoverableKeyException {
         // Connect to Cassandra
+        if (0 < hedgePercentile)
+            hedging = new HedgingPolicy(hedgePercentile / 100, hedgeBudget);
+        long start = System.nanoTime();
+        cluster = buildCluster(host, port, null, hedging, !fastStart);
+        session = cluster.connect();
+        phase("connect", start);
+        if (fastStart) {
+            start = System.nanoTime();
+            ring = TokenRing.read(session, cluster.getMetadata().getAllHosts(), keyspaceName);
+            phase("ring", start);
+        }
+        if (null != diffHost) {
+            diffCluster = buildCluster(diffHost, (0 < diffPort) ? diffPort : port, diffLocalDc, null, true);
+            diffSession = diffCluster.connect();
+        }
+        if (null != profileFile) {
+            profile = new CostProfile(new File(profileFile), debug);
+            profile.load();
+        }
+    }
+
+    private Cluster buildCluster(String contactPoint, int contactPort, String localDc, SpeculativeExecutionPolicy speculation,
+                                 boolean metadata)
+            throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
+            CertificateException, UnrecoverableKeyException {
+        DCAwareRoundRobinPolicy.Builder dcPolicy = DCAwareRoundRobinPolicy.builder();
+        if (null != localDc)
+            dcPolicy = dcPolicy.withLocalDc(localDc);
         Cluster.Builder clusterBuilder = Cluster.builder()
-                .addContactPoint(host)
-                .withPort(port)
+                .addContactPoint(contactPoint)
+                .withPort(contactPort)
                 .withSocketOptions(new SocketOptions().setReadTimeoutMillis(readTimeout).setConnectTimeoutMillis(connectTimeout))
-                .withLoadBalancingPolicy(new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build()));
+                .withLoadBalancingPolicy(new TargetedLoadBalancingPolicy(new TokenAwarePolicy(dcPolicy.build())));
+        if (null != speculation)
+            clusterBuilder = clusterBuilder.withSpeculativeExecutionPolicy(speculation);
+        // Without metadata the driver loads no schema and no token map at startup
+        if (!metadata)
+            clusterBuilder = clusterBuilder.withQueryOptions(new QueryOptions().setMetadataEnabled(false));
         if (null != username)
             clusterBuilder = clusterBuilder.withCredentials(username, password);
         if (null != truststorePath)
             clusterBuilder = clusterBuilder.withSSL(createSSLOptions());
 
-        cluster = clusterBuilder.build();
-        if (null == cluster) {
+        Cluster c = clusterBuilder.build();
+        if (null == c) {
             throw new IOException("Could not create cluster");
         }
-        session = cluster.connect();
+        return c;
     }
 
     private void cleanup() {
@@ -335,122 +655,432 @@ public class CqlCount {
             session.close();
         if (null != cluster)
             cluster.close();
+        if (null != diffSession)
+            diffSession.close();
+        if (null != diffCluster)
+            diffCluster.close();
     }
 
-    private void determineSplits() {
-        beginTokens = new ArrayList<>();
-        endTokens = new ArrayList<>();
-        Metadata m = cluster.getMetadata();
+    private boolean determineSplits() {
+        long start = System.nanoTime();
+        String partitioner = partitioner();
+        Boolean wide = SplitPlan.isWide(partitioner);
+        if (null == wide) {
+            System.err.println("Unsupported partitioner " + partitioner
+                    + "; only Murmur3Partitioner and RandomPartitioner can be split");
+            return false;
+        }
+        plan = new SplitPlan(wide);
         if (null != beginTokenString) {
-            BigInteger begin;
-            BigInteger end;
-            BigInteger delta;
-            begin = new BigInteger(beginTokenString);
-            end = new BigInteger(endTokenString);
-            delta = end.subtract(begin).divide(new BigInteger(String.valueOf(numSplits)));
-            for (int mype = 0; mype < numSplits; mype++) {
-                if (mype < numSplits - 1) {
-                    beginTokens.add(m.newToken(begin.add(delta.multiply(new BigInteger(String.valueOf(mype)))).toString()));
-                    endTokens.add(m.newToken(begin.add(delta.multiply(new BigInteger(String.valueOf(mype + 1)))).toString()));
-                } else {
-                    beginTokens.add(m.newToken(begin.add(delta.multiply(new BigInteger(String.valueOf(numSplits - 1)))).toString()));
-                    endTokens.add(m.newToken(end.toString()));
-                }
+            BigInteger beginToken = new BigInteger(beginTokenString);
+            BigInteger endToken = new BigInteger(endTokenString);
+            if (!plan.isToken(beginToken) || !plan.isToken(endToken)) {
+                System.err.println("beginToken and endToken must be from " + plan.getMinToken()
+                        + " to " + plan.getMaxToken() + " for " + partitioner);
+                return false;
             }
-
+            plan.add(beginToken, endToken, Math.max(1, numSplits));
         } else {
-            Set<TokenRange> inranges = m.getTokenRanges();
-            Set<TokenRange> ranges = new HashSet<>();
+            List<BigInteger[]> inranges = ringRanges();
             if (0 == numSplits) {
-                debugPrint("Getting token ranges as number of splits", true, 2);
-                numSplits = m.getTokenRanges().size();
+                Debug.print(debug, "Getting token ranges as number of splits", true, 2);
+                numSplits = inranges.size();
             }
             if (numSplits > 0) {
-                debugPrint("Splitting into " + numSplits + " splits", true, 2);
-                for (TokenRange tr : inranges) {
-                    Token start = tr.getStart();
-                    Token end = tr.getEnd();
-                    if (0 < start.compareTo(end)) {
-                        ranges.add(m.newTokenRange(start, m.newToken(maxToken)));
-                        ranges.add(m.newTokenRange(m.newToken(minToken), end));
-                    } else {
-                        ranges.add(tr);
-                    }
-                }
-                int numRanges = ranges.size();
+                Debug.print(debug, "Splitting into " + numSplits + " splits", true, 2);
+                int numRanges = inranges.size();
                 numSplits = Math.max(numRanges * 10, numSplits);
                 int numSplitsPerRange = numSplits / numRanges;
-                debugPrint("Splitting " + numRanges + " ranges each into " + numSplitsPerRange + " splits", true, 2);
+                Debug.print(debug, "Splitting " + numRanges + " ranges each into " + numSplitsPerRange + " splits", true, 2);
                 if (numSplitsPerRange < 1)
                     numSplitsPerRange = 1;
 
-                for (TokenRange r : ranges) {
-                    List<TokenRange> splits = r.splitEvenly(numSplitsPerRange);
-                    for (TokenRange s : splits) {
-                        beginTokens.add(s.getStart());
-                        endTokens.add(s.getEnd());
-                    }
-                }
-                debugPrint("Total ranges: " + beginTokens.size(), true, 1);
+                // Wrapping ranges are cut at the end of the ring by SplitPlan.add()
+                for (BigInteger[] tr : inranges)
+                    plan.add(tr[0], tr[1], numSplitsPerRange);
+                Debug.print(debug, "Total ranges: " + plan.getTotalSplits(), true, 1);
             } else {
-                List<Row> rows = session.execute("SELECT range_start, range_end, mean_partition_size, partitions_count FROM system.size_estimates WHERE keyspace_name='" + keyspaceName + "' AND table_name = '" + tableName + "'").all();
-                Long maxToken = Long.MAX_VALUE;
-                Long minToken = Long.MIN_VALUE;
-                debugPrint("Splitting by size: " + splitSize, true, 2);
+                List<Row> rows = session.execute("SELECT range_start, range_end, mean_partition_size, partitions_count FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?",
+                        keyspaceName, tableName).all();
+                Debug.print(debug, "Splitting by size: " + splitSize, true, 2);
                 for (Row r : rows) {
-                    long stlong;
-                    long enlong;
-                    if (rows.size() == 1) {
-                        stlong = minToken;
-                        enlong = maxToken;
-                    } else {
-                        String st = r.getString("range_start");
-                        String en = r.getString("range_end");
-                        stlong = Long.parseLong(st);
-                        enlong = Long.parseLong(en);
-                    }
                     long mps = r.getLong("mean_partition_size");
                     long pc = r.getLong("partitions_count");
                     long nsplit = (long) (((double) mps * (double) pc) / (double) splitSize);
                     if (nsplit < 1)
                         nsplit = 1;
-                    debugPrint("Splitting (" + stlong + "," + enlong + "] into " + nsplit + " splits", true, 2);
-                    long delta = (enlong / nsplit) - (stlong / nsplit);
-                    for (long i = 0; i < nsplit; i++) {
-                        beginTokens.add(m.newToken(String.valueOf(stlong + (i * delta))));
-                        debugPrint("  (" + (stlong + (i * delta)), false, 2);
-                        if (i < nsplit - 1) {
-                            endTokens.add(m.newToken(String.valueOf(stlong + ((i + 1) * delta))));
-                            debugPrint(", " + (stlong + ((i + 1) * delta)) + "]", true, 2);
-                        } else {
-                            endTokens.add(m.newToken(String.valueOf(enlong)));
-                            debugPrint(", " + enlong + "]", true, 2);
-                        }
+                    if (rows.size() == 1) {
+                        Debug.print(debug, "Splitting the whole ring into " + nsplit + " splits", true, 2);
+                        if (wide)
+                            plan.add(SplitPlan.MIN_WIDE_TOKEN, SplitPlan.MAX_WIDE_TOKEN, nsplit);
+                        else
+                            plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, nsplit);
+                    } else {
+                        String st = r.getString("range_start");
+                        String en = r.getString("range_end");
+                        Debug.print(debug, "Splitting (" + st + "," + en + "] into " + nsplit + " splits", true, 2);
+                        if (wide)
+                            plan.add(new BigInteger(st), new BigInteger(en), nsplit);
+                        else
+                            plan.add(Long.parseLong(st), Long.parseLong(en), nsplit);
                     }
                 }
-                debugPrint("Total ranges: " + beginTokens.size(), true, 1);
+                Debug.print(debug, "Total ranges: " + plan.getTotalSplits(), true, 1);
             }
         }
+        phase("plan", start);
+        return true;
+    }
+
+    /**
+     * The token ranges of the ring, from the driver's metadata or, with
+     * -fastStart, from the TokenRing read at setup.
+     */
+    private List<BigInteger[]> ringRanges() {
+        if (null != ring)
+            return ring.getRanges();
+        List<BigInteger[]> ranges = new ArrayList<>();
+        for (TokenRange tr : cluster.getMetadata().getTokenRanges())
+            ranges.add(new BigInteger[]{tokenValue(tr.getStart()), tokenValue(tr.getEnd())});
+        return ranges;
+    }
+
+    private ReplicaScheduler newScheduler(SplitPlan plan) {
+        LoadBalancingPolicy policy = cluster.getConfiguration().getPolicies().getLoadBalancingPolicy();
+        if (null != ring)
+            return new ReplicaScheduler(plan, ring, policy, numFuturesPerHost);
+        return new ReplicaScheduler(plan, cluster.getMetadata(), Metadata.quote(keyspaceName), policy, numFuturesPerHost);
+    }
+
+    private void phase(String name, long startNanos) {
+        phaseNanos.merge(name, System.nanoTime() - startNanos, Long::sum);
+    }
+
+    /**
+     * How long each startup phase took, before the first split query.
+     */
+    private void printPhases() {
+        if (!fastStart && (1 > debug))
+            return;
+        StringBuilder sb = new StringBuilder("Startup:");
+        for (Map.Entry<String, Long> e : phaseNanos.entrySet())
+            sb.append((sb.length() > 8) ? ", " : " ").append(e.getKey()).append(" ").append(String.format("%.3f s", e.getValue() / 1e9));
+        System.err.println(sb.toString());
+    }
+
+    /**
+     * determineSplits(), then recut by -profile where it has a history
+     * of the table; splits it has no history for are kept.  The recut
+     * plan has at least as many splits as the first.
+     */
+    private boolean planSplits() {
+        if (!determineSplits())
+            return false;
+        if (null != profile) {
+            SplitPlan learned = profile.plan(keyspaceName + "." + tableName, queryIdentity(), plan, plan.getTotalSplits());
+            if (null != learned)
+                plan = learned;
+        }
+        // -beginToken/-endToken and learned plans can span vnodes; the
+        // scheduler looks up replicas once per segment
+        List<BigInteger[]> ranges = ringRanges();
+        BigInteger[] tokens = new BigInteger[ranges.size()];
+        for (int i = 0; i < tokens.length; i++)
+            tokens[i] = ranges.get(i)[1];
+        Arrays.sort(tokens);
+        plan = plan.cutAt(tokens);
+        return true;
+    }
+
+    private String partitioner() {
+        return (null != ring) ? ring.getPartitioner() : cluster.getMetadata().getPartitioner();
+    }
+
+    /**
+     * What a count counts and how, as "key=value" pairs with -where
+     * last: a cost profile or journal from another query does not
+     * apply to this one.
+     */
+    private String queryIdentity() {
+        return "partitioner=" + partitioner() + " countPartitions=" + countPartitions + " engine=" + engine
+                + " writetime=" + writetimeColumn + " bytes=" + countBytes + " where=" + whereClause;
+    }
+
+    private void saveProfile() {
+        try {
+            profile.save();
+        } catch (IOException e) {
+            System.err.println("Could not write cost profile: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the table's system.size_estimates ranges, as reported by the
+     * node we are connected to, to approx to stratify by, and returns
+     * the sum of their partitions_count.  Cheap, but only counts
+     * partitions and is only as fresh as the last refresh.
+     */
+    private long addSizeEstimates(ApproxCounter approx) {
+        long total = 0;
+        for (Row r : session.execute("SELECT range_start, range_end, partitions_count FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?",
+                keyspaceName, tableName)) {
+            long pc = r.getLong("partitions_count");
+            approx.addSizeEstimate(new BigInteger(r.getString("range_start")), new BigInteger(r.getString("range_end")), pc);
+            total += pc;
+        }
+        return total;
+    }
+
+    private static BigInteger tokenValue(Token t) {
+        Object v = t.getValue();
+        if (v instanceof BigInteger)
+            return (BigInteger) v;
+        return BigInteger.valueOf((Long) v);
+    }
+
+    /**
+     * keyspaceName and tableName hold names as stored in the schema;
+     * quoted, the driver's lookups take them as they are.
+     */
+    private TableMetadata table() {
+        return cluster.getMetadata().getKeyspace(Metadata.quote(keyspaceName)).getTable(Metadata.quote(tableName));
     }
 
-    private PreparedStatement prepareStatement() {
-        List<ColumnMetadata> partkeys = cluster.getMetadata().getKeyspace(keyspaceName).getTable(tableName).getPartitionKey();
+    private String qualifiedName() {
+        return Identifiers.quoteIfNecessary(keyspaceName) + "." + Identifiers.quoteIfNecessary(tableName);
+    }
+
+    private String partitionKey() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : partitionKeyNames())
+            sb.append((0 == sb.length()) ? "" : ", ").append(Identifiers.quoteIfNecessary(name));
+        return sb.toString();
+    }
+
+    private List<String> partitionKeyNames() {
+        if (fastStart)
+            return partitionKeys.computeIfAbsent(keyspaceName + "." + tableName, k -> readPartitionKey());
+        List<String> names = new ArrayList<>();
+        for (ColumnMetadata c : table().getPartitionKey())
+            names.add(c.getName());
+        return names;
+    }
+
+    /**
+     * The partition key columns of the table, in order, read from the
+     * schema tables instead of the driver's metadata.  Empty if the
+     * table does not exist.
+     */
+    private List<String> readPartitionKey() {
+        long start = System.nanoTime();
+        Map<Integer, String> byPosition = new TreeMap<>();
+        try {
+            for (Row r : session.execute("SELECT column_name, kind, position FROM system_schema.columns WHERE keyspace_name = ? AND table_name = ?",
+                    keyspaceName, tableName))
+                if ("partition_key".equals(r.getString("kind")))
+                    byPosition.put(r.getInt("position"), r.getString("column_name"));
+        } catch (InvalidQueryException e) {
+            // Before Cassandra 3.0; component_index is null for a single-column key
+            for (Row r : session.execute("SELECT column_name, type, component_index FROM system.schema_columns WHERE keyspace_name = ? AND columnfamily_name = ?",
+                    keyspaceName, tableName))
+                if ("partition_key".equals(r.getString("type")))
+                    byPosition.put(r.isNull("component_index") ? 0 : r.getInt("component_index"), r.getString("column_name"));
+        }
+        phase("schema", start);
+        return new ArrayList<>(byPosition.values());
+    }
+
+    /**
+     * Every column, partition key first.
+     */
+    private String allColumns() {
+        return columnList(table().getColumns());
+    }
+
+    private static String columnList(List<ColumnMetadata> columns) {
+        StringBuilder sb = new StringBuilder(Identifiers.quoteIfNecessary(columns.get(0).getName()));
+        for (int i = 1; i < columns.size(); i++)
+            sb.append(", ").append(Identifiers.quoteIfNecessary(columns.get(i).getName()));
+        return sb.toString();
+    }
+
+    /**
+     * -writetime must name a column that has a writetime: not part of
+     * the primary key, and not a non-frozen collection.
+     */
+    private boolean checkWritetimeColumn() {
+        if (null == writetimeColumn)
+            return true;
+        TableMetadata t = table();
+        ColumnMetadata c = t.getColumn(writetimeColumn);
+        if ((null == c) || t.getPrimaryKey().contains(c) || (c.getType().isCollection() && !c.getType().isFrozen())) {
+            System.err.println("-writetime " + writetimeColumn + " must be a regular, non-collection column of "
+                    + keyspaceName + "." + tableName);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prepares "SELECT selection FROM table" restricted to one split,
+     * on the given side.  A -where predicate the server can evaluate is
+     * added with ALLOW FILTERING: the token range bounds each query, so
+     * the server only ever filters one split's rows.
+     */
+    private PreparedStatement prepareStatement(Session session, ConsistencyLevel consistencyLevel, String selection) {
+        String pk = partitionKey();
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ").append(selection).append(" FROM ");
+        sb.append(qualifiedName());
+        sb.append(" WHERE Token(").append(pk).append(") > ? AND Token(").append(pk).append(") <= ?");
+        if ((null != whereClause) && (null == clientFilter))
+            sb.append(" AND ").append(whereClause).append(" ALLOW FILTERING");
+
+        Debug.print(debug, "Query: " + sb.toString(), true, 2);
+
+        // Reads only, so safe to retry or hedge on another replica
+        return session.prepare(sb.toString()).setConsistencyLevel(consistencyLevel).setIdempotent(true);
+    }
+
+    /**
+     * The executor for -countPartitions and -engine.  partitions
+     * receives the partition total for -countPartitions both, and
+     * skewReport, if not null, the widest partitions of paged splits.
+     * aggregates, if not null, receives the -writetime and -bytes
+     * statistics.
+     */
+    private SplitExecutor createExecutor(LongAdder partitions, SkewReport skewReport, SplitAggregates aggregates) {
+        return createExecutor(session, consistencyLevel, partitions, skewReport, aggregates);
+    }
+
+    private SplitExecutor createExecutor(Session session, ConsistencyLevel consistencyLevel,
+                                         LongAdder partitions, SkewReport skewReport, SplitAggregates aggregates) {
+        if (!chooseFilter(session, consistencyLevel))
+            return null;
+        if ("true".equals(countPartitions))
+            return new PagedSplitExecutor(session, prepareStatement(session, consistencyLevel, "DISTINCT " + partitionKey()), fetchSize, null);
+        if ("both".equals(countPartitions)) {
+            String selection = partitionKey();
+            if (null != clientFilter)
+                selection += filterColumns();
+            PagedSplitExecutor both = new PagedSplitExecutor(session, prepareStatement(session, consistencyLevel, selection), fetchSize, partitions);
+            both.setSkewReport(skewReport);
+            if (null != clientFilter) {
+                both.setKeyColumns(partitionKeyNames().size());
+                both.setFilter(clientFilter);
+            }
+            return both;
+        }
+        // There is no server-side aggregate for sizes, so -bytes reads every value,
+        // and only paged rows can be filtered on the client
+        if ("paged".equals(engine) || ((null != aggregates) && aggregates.isBytes()) || (null != clientFilter))
+            return pagedExecutor(session, consistencyLevel, skewReport, aggregates);
+        SplitExecutor counted;
+        if (null == aggregates) {
+            counted = new CqlSplitExecutor(session, prepareStatement(session, consistencyLevel, "COUNT(*)"));
+        } else {
+            String wt = "WRITETIME(" + aggregates.getWritetimeColumn() + ")";
+            PreparedStatement ps;
+            try {
+                ps = prepareStatement(session, consistencyLevel, "COUNT(*), MIN(" + wt + "), MAX(" + wt + ")");
+            } catch (QueryValidationException e) {
+                System.err.println("The server cannot aggregate " + wt + " (" + e.getMessage() + "); paging instead");
+                return pagedExecutor(session, consistencyLevel, skewReport, aggregates);
+            }
+            CqlSplitExecutor aggregated = new CqlSplitExecutor(session, ps);
+            aggregated.setAggregates(aggregates);
+            counted = aggregated;
+        }
+        if ("auto".equals(engine))
+            return new FallbackSplitExecutor(counted, pagedExecutor(session, consistencyLevel, skewReport, aggregates), debug);
+        return counted;
+    }
+
+    private PagedSplitExecutor pagedExecutor(Session session, ConsistencyLevel consistencyLevel,
+                                             SkewReport skewReport, SplitAggregates aggregates) {
+        // Partition sizes need the key itself; its token is enough to count rows
+        String selection = (null != skewReport) ? partitionKey() : "Token(" + partitionKey() + ")";
+        if ((null != aggregates) && aggregates.isBytes())
+            selection = allColumns();
+        else if (null != clientFilter)
+            selection += filterColumns();
+        if ((null != aggregates) && (null != aggregates.getWritetimeColumn()))
+            selection += ", WRITETIME(" + aggregates.getWritetimeColumn() + ")";
+        PagedSplitExecutor paged = new PagedSplitExecutor(session, prepareStatement(session, consistencyLevel, selection), fetchSize, null);
+        paged.setSkewReport(skewReport);
+        if ((null != aggregates) || (null != clientFilter))
+            paged.setKeyColumns(partitionKeyNames().size());
+        paged.setAggregates(aggregates);
+        paged.setFilter(clientFilter);
+        return paged;
+    }
+
+    /**
+     * Decides where the current table's -where predicate is evaluated:
+     * by the server if it accepts the predicate with ALLOW FILTERING,
+     * otherwise by a RowFilter on the paged rows.  Returns false, after
+     * saying why, if neither can.
+     */
+    private boolean chooseFilter(Session session, ConsistencyLevel consistencyLevel) {
+        clientFilter = null;
+        if (null == whereClause)
+            return true;
+        try {
+            prepareStatement(session, consistencyLevel, "COUNT(*)");
+            return true;
+        } catch (QueryValidationException e) {
+            try {
+                clientFilter = RowFilter.parse(whereClause);
+                // Without metadata the filter is typed from the first row
+                if (!fastStart) {
+                    final TableMetadata table = table();
+                    clientFilter.bind(c -> (null == table.getColumn(c)) ? null : table.getColumn(c).getType());
+                }
+            } catch (IllegalArgumentException pe) {
+                System.err.println("The server cannot filter on -where " + whereClause + " (" + e.getMessage()
+                        + ") and it cannot be evaluated on the client: " + pe.getMessage());
+                return false;
+            }
+            System.err.println("The server cannot filter on -where " + whereClause + " (" + e.getMessage()
+                    + "); paging and filtering on the client instead");
+            return true;
+        }
+    }
+
+    private String filterColumns() {
         StringBuilder sb = new StringBuilder();
-        sb.append("SELECT COUNT(*) FROM ");
-        sb.append(keyspaceName).append(".").append(tableName);
-        sb.append(" WHERE Token(");
-        sb.append(partkeys.get(0).getName());
-        for (int i = 1; i < partkeys.size(); i++)
-            sb.append(", ").append(partkeys.get(i).getName());
-        sb.append(") > ? AND Token(");
-        sb.append(partkeys.get(0).getName());
-        for (int i = 1; i < partkeys.size(); i++)
-            sb.append(",").append(partkeys.get(i).getName());
-        sb.append(") <= ?");
+        for (String c : clientFilter.getColumns())
+            sb.append(", ").append(c);
+        return sb.toString();
+    }
 
-        debugPrint("Query: " + sb.toString(), true, 2);
+    /**
+     * Prints progress and/or writes the metrics file periodically.
+     * Returns null if neither was asked for.
+     */
+    private ScheduledExecutorService startReporter(final CountMetrics metrics) {
+        if ((0 == progressInterval) && (null == metricsFile))
+            return null;
+        int interval = (0 < progressInterval) ? progressInterval : 10;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "count-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> report(metrics), interval, interval, TimeUnit.SECONDS);
+        return reporter;
+    }
 
-        return session.prepare(sb.toString()).setConsistencyLevel(consistencyLevel);
+    private void report(CountMetrics metrics) {
+        if (0 < progressInterval)
+            System.err.println(metrics.report());
+        if (null != metricsFile) {
+            try {
+                metrics.writePrometheus(new File(metricsFile));
+            } catch (IOException e) {
+                System.err.println("Could not write metrics file: " + e.getMessage());
+            }
+        }
     }
 
     public boolean run(String[] args)
@@ -462,69 +1092,481 @@ public class CqlCount {
             System.err.println(usage());
             return false;
         }
-        debugPrint("Version: " + version, true, 2);
+        Debug.print(debug, "Version: " + version, true, 2);
 
         // Setup
-        setup();
+        try {
+            setup();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            cleanup();
+            return false;
+        }
+        if (0 < daemonPort)
+            return runDaemon();
+
+        // Resolve -table
+        List<String> tables = resolveTables();
+        if (null == tables) {
+            cleanup();
+            return false;
+        }
+        if (1 < tables.size()) {
+            boolean ok = runTables(tables);
+            cleanup();
+            return ok;
+        }
+        tableName = tables.get(0);
 
         // Determine splits
-        determineSplits();
-
-        // Prepare Statement
-        PreparedStatement ps = prepareStatement();
-        List<ResultSetFuture> flist = new ArrayList<>();
-        int fsize = 0;
-        long count = 0;
-        Row r;
-
-        // Loop over splits
-        debugPrint("Running over " + beginTokens.size() + " tokens", true, 2);
-        for (int i = 0; i < beginTokens.size(); i++) {
-            //   Bind Split
-            debugPrint("Executing: " + beginTokens.get(i) + "  " + endTokens.get(i), true, 2);
-            BoundStatement bs = ps.bind(beginTokens.get(i),
-                    endTokens.get(i));
-            //   Execute query
-            ResultSetFuture rsf = session.executeAsync(bs);
-            flist.add(rsf);
-            fsize++;
-            if (fsize >= numFutures) {
-                debugPrint("Waiting for " + flist.size() + " futures after token #" + i + "/" + beginTokens.size(), true, 2);
-                for (ResultSetFuture rs : flist) {
-                    try {
-                        r = rs.getUninterruptibly(readTimeout, TimeUnit.MILLISECONDS).one();
-                    } catch (Exception rte) {
-                        System.err.println("An " + rte.getClass().getSimpleName() + " occurred. Try increasing -numSplits or reducing -splitSize. " + rte.getMessage());
-                        rte.printStackTrace();
-                        cleanup();
-                        return false;
-                    }
-                    count += r.getLong(0);
-                }
-                flist.clear();
-                fsize = 0;
+        if (!checkWritetimeColumn() || !planSplits()) {
+            cleanup();
+            return false;
+        }
+        printPhases();
+        ShardResult shardResult = null;
+        if (null != shardResultFile) {
+            SplitPlan fullPlan = plan;
+            if (0 < numShards) {
+                long total = plan.getTotalSplits();
+                plan = plan.slice(total * (shard - 1) / numShards, total * shard / numShards);
+                Debug.print(debug, "Shard " + shard + "/" + numShards + ": " + plan.getTotalSplits() + " of " + total + " splits", true, 1);
             }
+            shardResult = new ShardResult(keyspaceName + "." + tableName, Math.max(1, shard), Math.max(1, numShards), fullPlan, plan,
+                    null != beginTokenString);
         }
-        if (fsize > 0) {
-            debugPrint("Waiting for " + flist.size() + " left futures", true, 2);
-            for (ResultSetFuture rs : flist) {
+        ReplicaScheduler scheduler = newScheduler(plan);
+        Debug.print(debug, "Interleaving splits across " + scheduler.getNumGroups() + " replica sets", true, 1);
+        Iterator<Split> splits = scheduler;
+        ConcurrencyController limiter = new ConcurrencyController(numFutures, targetLatency, debug);
+        CountMetrics metrics = new CountMetrics(keyspaceName, tableName, (0 <= approxError) ? 0 : plan.getTotalSplits(), limiter);
+        if (null != hedging)
+            hedging.setMetrics(metrics);
+
+        // Skip what an earlier run already counted
+        SplitJournal journal = null;
+        if (null != resumeFile) {
+            journal = new SplitJournal(new File(resumeFile), keyspaceName + "." + tableName, queryIdentity());
+            if (!journal.load(plan.isWide())) {
+                cleanup();
+                return false;
+            }
+            splits = journal.remaining(scheduler, metrics);
+        } else if (null != journalFile) {
+            journal = new SplitJournal(new File(journalFile), keyspaceName + "." + tableName, queryIdentity());
+        }
+
+        // Prepare Statements
+        LongAdder partitions = "both".equals(countPartitions) ? new LongAdder() : null;
+        SkewReport skewReport = (null != skewReportFile) ? new SkewReport(keyspaceName, tableName, topN) : null;
+        SplitAggregates aggregates = ((null != writetimeColumn) || countBytes) ? new SplitAggregates(writetimeColumn, countBytes) : null;
+        SplitExecutor executor = createExecutor(partitions, skewReport, aggregates);
+        if (null == executor) {
+            cleanup();
+            return false;
+        }
+        if (null != profile)
+            executor = profile.record(keyspaceName + "." + tableName, queryIdentity(), executor);
+        DiffSplitExecutor diff = null;
+        if (null != diffHost) {
+            SplitExecutor executorB = createExecutor(diffSession,
+                    (null != diffConsistencyLevel) ? diffConsistencyLevel : consistencyLevel, null, null, null);
+            if (null == executorB) {
+                cleanup();
+                return false;
+            }
+            diff = new DiffSplitExecutor(executor, executorB);
+            executor = diff;
+        }
+
+        // Loop over splits, keeping up to numFutures queries in flight
+        Debug.print(debug, "Running over " + plan.getTotalSplits() + " tokens", true, 2);
+        SplitPipeline pipeline = new SplitPipeline(executor, limiter, metrics, debug);
+        pipeline.setRetryPolicy(maxRetries, retryBackoff, minSplitWidth);
+        pipeline.setScheduler(scheduler);
+        if (null != skewReport)
+            pipeline.addListener(skewReport);
+        Thread journalHook = null;
+        if (null != journal) {
+            journal.open();
+            pipeline.addListener(journal);
+            final SplitJournal j = journal;
+            journalHook = new Thread(() -> {
                 try {
-                    r = rs.getUninterruptibly(readTimeout, TimeUnit.MILLISECONDS).one();
-                } catch (Exception rte) {
-                    System.err.println("An " + rte.getClass().getSimpleName() + " occurred. Try increasing -numSplits or reducing -splitSize. " + rte.getMessage());
-                    rte.printStackTrace();
-                    cleanup();
-                    return false;
+                    j.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close journal: " + e.getMessage());
                 }
-                count += r.getLong(0);
+            });
+            Runtime.getRuntime().addShutdownHook(journalHook);
+        }
+        if (0 <= approxError) {
+            boolean ok = runApprox(pipeline, metrics, skewReport);
+            cleanup();
+            return ok;
+        }
+        if (null != diff) {
+            boolean ok = runDiff(pipeline, diff, metrics, splits);
+            cleanup();
+            return ok;
+        }
+        ScheduledExecutorService reporter = startReporter(metrics);
+        boolean ok = pipeline.run(splits);
+        if (null != reporter) {
+            reporter.shutdownNow();
+            report(metrics);
+        }
+        if (null != journal) {
+            journal.close();
+            Runtime.getRuntime().removeShutdownHook(journalHook);
+        }
+        if (pipelineStats)
+            System.err.println(pipeline.stats());
+        if (executor instanceof FallbackSplitExecutor)
+            Debug.print(debug, ((FallbackSplitExecutor) executor).getFallbacks() + " splits were paged after COUNT(*) timed out", true, 1);
+        if (null != resumeFile)
+            Debug.print(debug, "Resumed " + journal.getResumedRanges() + " ranges with " + journal.getResumedCount()
+                    + " rows from " + resumeFile, true, 1);
+        if (!ok) {
+            Throwable rte = pipeline.getFailure();
+            printFailure(rte);
+            if (null != journal)
+                System.err.println("Completed splits are in the journal; rerun with -resume " + (null != resumeFile ? resumeFile : journalFile));
+            rte.printStackTrace();
+            if (null != shardResult) {
+                shardResult.setError(rte);
+                writeShardResult(shardResult);
+            }
+            cleanup();
+            return false;
+        }
+        long count = pipeline.getCount();
+        if (null != journal)
+            count += journal.getResumedCount();
+        if (null != shardResult) {
+            shardResult.setCount(count);
+            if (null != partitions)
+                shardResult.setPartitions(partitions.sum());
+            if (!writeShardResult(shardResult)) {
+                cleanup();
+                return false;
             }
-            flist.clear();
-            fsize = 0;
         }
 
-        System.out.println(keyspaceName + "." + tableName + ": " + count);
+        printCount(tableName, count, partitions, aggregates);
+        if (null != skewReport)
+            writeSkewReport(skewReport, count);
+        if (null != profile)
+            saveProfile();
 
         cleanup();
         return true;
     }
+
+    private void printFailure(Throwable rte) {
+        System.err.println("An " + rte.getClass().getSimpleName() + " occurred after " + maxRetries + " retries. Try increasing -numSplits, reducing -splitSize or reducing -minSplitWidth. " + rte.getMessage());
+    }
+
+    private void printCount(String table, long count, LongAdder partitions, SplitAggregates aggregates) {
+        if ("both".equals(countPartitions))
+            System.out.println(keyspaceName + "." + table + ": " + count + " rows, " + partitions.sum() + " partitions");
+        else if ("true".equals(countPartitions))
+            System.out.println(keyspaceName + "." + table + ": " + count + " partitions");
+        else if (null != aggregates)
+            System.out.println(keyspaceName + "." + table + ": " + count + " rows" + aggregates.format());
+        else
+            System.out.println(keyspaceName + "." + table + ": " + count);
+    }
+
+    /**
+     * The tables -table names: a comma-separated list of table names or
+     * regular expressions, or * for every table in the keyspace.
+     * Returns null, after saying why, if the keyspace does not exist or
+     * nothing matches.
+     */
+    private List<String> resolveTables() {
+        if (fastStart)
+            return fastStartTables();
+        KeyspaceMetadata ks = cluster.getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        if (null == ks) {
+            System.err.println("Keyspace " + keyspaceName + " does not exist");
+            return null;
+        }
+        List<String> tables = new ArrayList<>();
+        for (String p : tableName.split(",")) {
+            if (Identifiers.isIdentifier(p)) {
+                TableMetadata t = ks.getTable(Metadata.quote(Identifiers.handleId(p)));
+                if ((null != t) && !tables.contains(t.getName()))
+                    tables.add(t.getName());
+                continue;
+            }
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile("*".equals(p) ? ".*" : p);
+            } catch (PatternSyntaxException e) {
+                System.err.println("Bad -table pattern " + p + ": " + e.getDescription());
+                return null;
+            }
+            for (TableMetadata t : ks.getTables())
+                if (pattern.matcher(t.getName()).matches() && !tables.contains(t.getName()))
+                    tables.add(t.getName());
+        }
+        if (tables.isEmpty()) {
+            System.err.println("No table in " + keyspaceName + " matches " + tableName);
+            return null;
+        }
+        return tables;
+    }
+
+    /**
+     * Without schema metadata there is nothing to match patterns
+     * against, so -table must list names, plain or double-quoted; each
+     * is checked by reading its partition key.
+     */
+    private List<String> fastStartTables() {
+        List<String> tables = new ArrayList<>();
+        String pattern = tableName;
+        for (String name : pattern.split(",")) {
+            if (!Identifiers.isIdentifier(name)) {
+                System.err.println("-fastStart needs table names, not patterns: " + name);
+                return null;
+            }
+            name = Identifiers.handleId(name);
+            tableName = name;
+            if (partitionKeyNames().isEmpty()) {
+                System.err.println("Table " + keyspaceName + "." + name + " does not exist");
+                return null;
+            }
+            if (!tables.contains(name))
+                tables.add(name);
+        }
+        tableName = pattern;
+        return tables;
+    }
+
+    /**
+     * Counts several tables with one pipeline: their splits are
+     * interleaved into the same in-flight window and per-host limits,
+     * with one prepared statement per table.
+     */
+    private boolean runTables(List<String> names) {
+        if ((0 <= approxError) || (null != journalFile) || (null != resumeFile) || (null != skewReportFile)
+                || (null != diffHost) || (null != shardResultFile)) {
+            System.err.println("-approx, -journal, -resume, -skewReport, -diffHost and -shardResult count a single table");
+            return false;
+        }
+        String pattern = tableName;
+        TableSet tableSet = new TableSet();
+        Map<String, SplitAggregates> aggregates = new HashMap<>();
+        ReplicaScheduler router = null;
+        for (String name : names) {
+            tableName = name;
+            if (!checkWritetimeColumn() || !planSplits())
+                return false;
+            ReplicaScheduler scheduler = (null == router) ? newScheduler(plan) : router.forPlan(plan);
+            if (null == router)
+                router = scheduler;
+            LongAdder partitions = "both".equals(countPartitions) ? new LongAdder() : null;
+            if ((null != writetimeColumn) || countBytes)
+                aggregates.put(name, new SplitAggregates(writetimeColumn, countBytes));
+            SplitExecutor executor = createExecutor(partitions, null, aggregates.get(name));
+            if (null == executor)
+                return false;
+            if (null != profile)
+                executor = profile.record(keyspaceName + "." + name, queryIdentity(), executor);
+            tableSet.add(new TableSet.Table(name, plan, scheduler, executor, partitions));
+        }
+        tableName = pattern;
+        printPhases();
+        Debug.print(debug, "Counting " + names.size() + " tables in " + tableSet.getTotalSplits() + " splits", true, 1);
+
+        ConcurrencyController limiter = new ConcurrencyController(numFutures, targetLatency, debug);
+        CountMetrics metrics = new CountMetrics(keyspaceName, tableName, tableSet.getTotalSplits(), limiter);
+        if (null != hedging)
+            hedging.setMetrics(metrics);
+        SplitPipeline pipeline = new SplitPipeline(tableSet, limiter, metrics, debug);
+        pipeline.setRetryPolicy(maxRetries, retryBackoff, minSplitWidth);
+        pipeline.setScheduler(router);
+        pipeline.addListener(tableSet);
+        ScheduledExecutorService reporter = startReporter(metrics);
+        boolean ok = pipeline.run(tableSet.iterator());
+        if (null != reporter) {
+            reporter.shutdownNow();
+            report(metrics);
+        }
+        if (pipelineStats)
+            System.err.println(pipeline.stats());
+        if (!ok) {
+            Throwable rte = pipeline.getFailure();
+            printFailure(rte);
+            rte.printStackTrace();
+            return false;
+        }
+        for (TableSet.Table t : tableSet.getTables())
+            printCount(t.getName(), t.getCount(), t.getPartitions(), aggregates.get(t.getName()));
+        if (null != profile)
+            saveProfile();
+        return true;
+    }
+
+    private boolean runDiff(SplitPipeline pipeline, DiffSplitExecutor diff, CountMetrics metrics, Iterator<Split> splits) {
+        RangeDiff rangeDiff = new RangeDiff(pipeline, diff, metrics, diffMinWidth, debug);
+        ScheduledExecutorService reporter = startReporter(metrics);
+        boolean ok = rangeDiff.run(splits);
+        if (null != reporter) {
+            reporter.shutdownNow();
+            report(metrics);
+        }
+        if (pipelineStats)
+            System.err.println(pipeline.stats());
+        if (!ok) {
+            Throwable rte = pipeline.getFailure();
+            printFailure(rte);
+            rte.printStackTrace();
+            return false;
+        }
+        for (DiffSplitExecutor.Mismatch m : rangeDiff.getDifferences())
+            System.out.println(m.split + ": " + m.countA + " vs " + m.countB);
+        System.out.println(keyspaceName + "." + tableName + ": " + rangeDiff.getCountA() + " vs " + rangeDiff.getCountB()
+                + " (" + rangeDiff.getDifferences().size() + " differing ranges)");
+        return true;
+    }
+
+    private boolean writeShardResult(ShardResult shardResult) {
+        try {
+            shardResult.write(new File(shardResultFile));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not write shard result: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeSkewReport(SkewReport skewReport, long count) {
+        try {
+            skewReport.write(new File(skewReportFile), count);
+            Debug.print(debug, "Skew report written to " + skewReportFile, true, 1);
+        } catch (IOException e) {
+            System.err.println("Could not write skew report: " + e.getMessage());
+        }
+    }
+
+    private boolean runApprox(SplitPipeline pipeline, CountMetrics metrics, SkewReport skewReport) {
+        ApproxCounter approx = new ApproxCounter(plan, pipeline, metrics, approxStrata, approxSample,
+                approxError, approxTime, approxConfidence, debug);
+        Debug.print(debug, "size_estimates: about " + addSizeEstimates(approx) + " partitions", true, 1);
+        ScheduledExecutorService reporter = startReporter(metrics);
+        boolean ok = approx.run();
+        if (null != reporter) {
+            reporter.shutdownNow();
+            report(metrics);
+        }
+        if (pipelineStats)
+            System.err.println(pipeline.stats());
+        if (!ok) {
+            Throwable rte = pipeline.getFailure();
+            printFailure(rte);
+            rte.printStackTrace();
+            return false;
+        }
+        System.out.println(String.format("%s.%s: %d +/- %d (%s%% confidence, %d/%d splits sampled)",
+                keyspaceName, tableName, Math.round(approx.getEstimate()), Math.round(approx.getHalfWidth()),
+                new DecimalFormat("0.##").format(100 * approxConfidence), approx.getSampled(), plan.getTotalSplits()));
+        if (null != skewReport)
+            writeSkewReport(skewReport, Math.round(approx.getEstimate()));
+        return true;
+    }
+
+    /**
+     * Serves counts over HTTP until the process is stopped, keeping the
+     * session, prepared statements and split plans between counts.
+     */
+    private boolean runDaemon() throws IOException {
+        final DaemonServer server = new DaemonServer(this::countJob, keyspaceName, debug);
+        server.start(daemonPort);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            cleanup();
+        }));
+        System.err.println("Counting on http://localhost:" + daemonPort + "/count");
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * One -daemon count.  Split plans are cached per table until the
+     * token map changes, or with -profile until the table is counted
+     * again; executors, and so their prepared statements,
+     * until the table is dropped or recreated.
+     */
+    private long countJob(DaemonServer.Job job) throws Exception {
+        keyspaceName = Identifiers.handleId(job.getKeyspace());
+        tableName = Identifiers.handleId(job.getTable());
+        KeyspaceMetadata ks = cluster.getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        TableMetadata table = (null == ks) ? null : ks.getTable(Metadata.quote(tableName));
+        if (null == table)
+            throw new IllegalArgumentException("Table " + job.getName() + " does not exist");
+
+        Set<TokenRange> ring = cluster.getMetadata().getTokenRanges();
+        if (!ring.equals(cachedRing)) {
+            if (null != cachedRing)
+                Debug.print(debug, "Token map changed; replanning splits", true, 1);
+            planCache.clear();
+            cachedRing = ring;
+        }
+        plan = planCache.get(job.getName());
+        if (null == plan) {
+            // determineSplits() resolves -numSplits 0 in place
+            int requestedSplits = numSplits;
+            boolean planned = planSplits();
+            numSplits = requestedSplits;
+            if (!planned)
+                throw new IllegalStateException("Could not plan splits for " + job.getName());
+            planCache.put(job.getName(), plan);
+        }
+        String executorKey = job.getName() + "/" + table.getId();
+        SplitExecutor executor = executorCache.get(executorKey);
+        if (null == executor) {
+            executor = createExecutor(null, null, null);
+            if (null == executor)
+                throw new IllegalArgumentException("Cannot filter " + job.getName() + " on -where " + whereClause);
+            if (null != profile)
+                executor = profile.record(keyspaceName + "." + tableName, queryIdentity(), executor);
+            executorCache.put(executorKey, executor);
+        }
+
+        ReplicaScheduler scheduler = newScheduler(plan);
+        ConcurrencyController limiter = new ConcurrencyController(numFutures, targetLatency, debug);
+        CountMetrics metrics = new CountMetrics(keyspaceName, tableName, plan.getTotalSplits(), limiter);
+        job.setMetrics(metrics);
+        if (null != hedging)
+            hedging.setMetrics(metrics);
+        SplitPipeline pipeline = new SplitPipeline(executor, limiter, metrics, debug);
+        pipeline.setRetryPolicy(maxRetries, retryBackoff, minSplitWidth);
+        pipeline.setScheduler(scheduler);
+        ScheduledExecutorService reporter = startReporter(metrics);
+        boolean ok = pipeline.run(scheduler);
+        if (null != reporter) {
+            reporter.shutdownNow();
+            report(metrics);
+        }
+        if (pipelineStats)
+            System.err.println(pipeline.stats());
+        if (!ok) {
+            Throwable rte = pipeline.getFailure();
+            if (rte instanceof Exception)
+                throw (Exception) rte;
+            throw new RuntimeException(rte);
+        }
+        if (null != profile) {
+            // Replan from the refreshed history next time
+            saveProfile();
+            planCache.remove(job.getName());
+        }
+        return pipeline.getCount();
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Counts a split with the prepared COUNT(*) token range query, sent to
+ * the split's pinned replica when the ReplicaScheduler chose one.
+ *
+ * With SplitAggregates set, the query must select MIN(WRITETIME(c))
+ * and MAX(WRITETIME(c)) after the count; they are merged into the
+ * aggregates when the split succeeds.
+ */
+public class CqlSplitExecutor implements SplitExecutor {
+    private static final Function<ResultSet, Long> FIRST_LONG = new Function<ResultSet, Long>() {
+        @Override
+        public Long apply(ResultSet rs) {
+            return rs.one().getLong(0);
+        }
+    };
+
+    private final Session session;
+    private final PreparedStatement ps;
+    private Function<ResultSet, Long> result = FIRST_LONG;
+
+    public CqlSplitExecutor(Session session, PreparedStatement ps) {
+        this.session = session;
+        this.ps = ps;
+    }
+
+    public void setAggregates(final SplitAggregates aggregates) {
+        result = new Function<ResultSet, Long>() {
+            @Override
+            public Long apply(ResultSet rs) {
+                Row row = rs.one();
+                SplitAggregates.Partial partial = aggregates.newPartial();
+                // No rows, or no value with a writetime: both are null
+                if (!row.isNull(1))
+                    partial.addWritetime(row.getLong(1));
+                if (!row.isNull(2))
+                    partial.addWritetime(row.getLong(2));
+                partial.merge();
+                return row.getLong(0);
+            }
+        };
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(Split split) {
+        Statement bs = split.bind(ps);
+        if (null != split.getHost())
+            bs = new RoutedStatement(bs, split.getHost(), split.getReplicas());
+        return Futures.transform(session.executeAsync(bs), result);
+    }
+}
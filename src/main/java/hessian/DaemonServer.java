@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The HTTP API of -daemon mode, on the loopback interface only.
+ *
+ *   POST /count?table=t[&keyspace=ks][&wait=true]  queue a count
+ *   GET  /count/<id>[?wait=true]                   state of one count
+ *   GET  /counts                                   recent counts
+ *
+ * Responses are "key value" lines: id, table, state (queued, running,
+ * done or failed), progress while running, then count or error.
+ * Counts run one at a time, in the order they were asked for, on the
+ * session the Counter keeps open; the last MAX_JOBS are remembered.
+ */
+public class DaemonServer {
+    private static final int MAX_JOBS = 100;
+
+    /**
+     * Runs one count; throws if it fails.
+     */
+    public interface Counter {
+        long count(Job job) throws Exception;
+    }
+
+    public static class Job {
+        private final long id;
+        private final String keyspace;
+        private final String table;
+        private volatile String state = "queued";
+        private volatile CountMetrics metrics = null;
+        private volatile long count = -1;
+        private volatile String error = null;
+        private volatile long startMillis = 0;
+        private volatile long endMillis = 0;
+        private Future<?> done;
+
+        Job(long id, String keyspace, String table) {
+            this.id = id;
+            this.keyspace = keyspace;
+            this.table = table;
+        }
+
+        public String getKeyspace() {
+            return keyspace;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getName() {
+            return keyspace + "." + table;
+        }
+
+        /**
+         * Progress of the running count is read from these metrics.
+         */
+        public void setMetrics(CountMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        void run(Counter counter) {
+            state = "running";
+            startMillis = System.currentTimeMillis();
+            try {
+                count = counter.count(this);
+                state = "done";
+            } catch (Exception e) {
+                error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                state = "failed";
+            } finally {
+                endMillis = System.currentTimeMillis();
+            }
+        }
+
+        String status() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("id ").append(id).append("\n");
+            sb.append("table ").append(getName()).append("\n");
+            sb.append("state ").append(state).append("\n");
+            CountMetrics m = metrics;
+            if ("running".equals(state) && (null != m))
+                sb.append("progress ").append(m.report()).append("\n");
+            if (0 < endMillis)
+                sb.append("seconds ").append(String.format("%.3f", (endMillis - startMillis) / 1e3)).append("\n");
+            if ("done".equals(state))
+                sb.append("count ").append(count).append("\n");
+            if (null != error)
+                sb.append("error ").append(error.replace('\n', ' ')).append("\n");
+            return sb.toString();
+        }
+    }
+
+    private final Counter counter;
+    private final String defaultKeyspace;
+    private final int debug;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, Job> jobs = new LinkedHashMap<Long, Job>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "daemon-count");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer server = null;
+
+    public DaemonServer(Counter counter, String defaultKeyspace, int debug) {
+        this.counter = counter;
+        this.defaultKeyspace = defaultKeyspace;
+        this.debug = debug;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/count", this::handleCount);
+        server.createContext("/counts", this::handleCounts);
+        // Requests that wait for a count must not hold up the others
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "daemon-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        Debug.print(debug, "Listening on " + server.getAddress(), true, 1);
+    }
+
+    public void stop() {
+        if (null != server)
+            server.stop(0);
+        worker.shutdownNow();
+    }
+
+    private void handleCount(HttpExchange ex) throws IOException {
+        try {
+            Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+            String path = ex.getRequestURI().getPath();
+            boolean wait = Boolean.parseBoolean(query.get("wait"));
+            Job job;
+            if ("/count".equals(path) || "/count/".equals(path)) {
+                if (!"POST".equals(ex.getRequestMethod())) {
+                    respond(ex, 405, "error POST a count\n");
+                    return;
+                }
+                String keyspace = query.containsKey("keyspace") ? query.get("keyspace") : defaultKeyspace;
+                String table = query.get("table");
+                if ((null == keyspace) || (null == table)) {
+                    respond(ex, 400, "error keyspace and table are required\n");
+                    return;
+                }
+                job = submit(keyspace, table);
+            } else {
+                try {
+                    synchronized (jobs) {
+                        job = jobs.get(Long.parseLong(path.substring("/count/".length())));
+                    }
+                } catch (NumberFormatException e) {
+                    job = null;
+                }
+                if (null == job) {
+                    respond(ex, 404, "error no such count\n");
+                    return;
+                }
+            }
+            if (wait)
+                job.done.get();
+            respond(ex, "queued".equals(job.state) || "running".equals(job.state) ? 202 : 200, job.status());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(ex, 503, "error interrupted\n");
+        } catch (Exception e) {
+            respond(ex, 500, "error " + e.getMessage() + "\n");
+        }
+    }
+
+    private void handleCounts(HttpExchange ex) throws IOException {
+        List<Job> list;
+        synchronized (jobs) {
+            list = new ArrayList<>(jobs.values());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Job job : list)
+            sb.append(job.id).append(" ").append(job.getName()).append(" ").append(job.state)
+                    .append(("done".equals(job.state)) ? " " + job.count : "").append("\n");
+        respond(ex, 200, sb.toString());
+    }
+
+    private Job submit(String keyspace, String table) {
+        Job job = new Job(nextId.getAndIncrement(), keyspace, table);
+        Debug.print(debug, "Count " + job.id + ": " + job.getName(), true, 1);
+        job.done = worker.submit(() -> {
+            job.run(counter);
+            Debug.print(debug, "Count " + job.id + ": " + job.getName() + " " + job.state
+                    + (("done".equals(job.state)) ? " " + job.count : " " + job.error), true, 1);
+        });
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+        return job;
+    }
+
+    private static Map<String, String> parseQuery(String raw) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (null == raw)
+            return query;
+        for (String kv : raw.split("&")) {
+            int eq = kv.indexOf('=');
+            if (0 < eq)
+                query.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"), URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange ex, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
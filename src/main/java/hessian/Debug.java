@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+/**
+ * Debug messages, printed to stderr when the -debug level is at least
+ * the message's level.
+ */
+final class Debug {
+    private Debug() {
+    }
+
+    /**
+     * True if messages of level are printed, to skip building costly
+     * ones that are not.
+     */
+    static boolean enabled(int debug, int level) {
+        return debug >= level;
+    }
+
+    static void print(int debug, String str, boolean crlf, int level) {
+        if (enabled(debug, level))
+            System.err.print(str + (crlf ? "\n" : ""));
+    }
+}
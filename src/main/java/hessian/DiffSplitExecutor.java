@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Counts each split on two sides, e.g. two clusters or two data
+ * centers, and queues the splits whose counts differ.  The future
+ * fails if either side fails, so the pipeline retries or bisects the
+ * split on both.  Its value is side A's count; side B's total is kept
+ * here.
+ *
+ * Side B gets the split without its host, since the replica chosen by
+ * the scheduler belongs to side A's cluster.
+ */
+public class DiffSplitExecutor implements SplitExecutor {
+    private final SplitExecutor sideA;
+    private final SplitExecutor sideB;
+    private final LongAdder countB = new LongAdder();
+    private final Queue<Mismatch> mismatches = new ConcurrentLinkedQueue<>();
+
+    public static class Mismatch {
+        final Split split;
+        final long countA;
+        final long countB;
+
+        Mismatch(Split split, long countA, long countB) {
+            this.split = split;
+            this.countA = countA;
+            this.countB = countB;
+        }
+
+        @Override
+        public String toString() {
+            return split + " " + countA + " " + countB;
+        }
+    }
+
+    public DiffSplitExecutor(SplitExecutor sideA, SplitExecutor sideB) {
+        this.sideA = sideA;
+        this.sideB = sideB;
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(final Split split) {
+        final ListenableFuture<Long> a = sideA.execute(split);
+        final ListenableFuture<Long> b = sideB.execute(split.unrouted());
+        return Futures.transform(Futures.allAsList(ImmutableList.of(a, b)), new Function<List<Long>, Long>() {
+            @Override
+            public Long apply(List<Long> counts) {
+                long ca = counts.get(0);
+                long cb = counts.get(1);
+                countB.add(cb);
+                if (ca != cb)
+                    mismatches.add(new Mismatch(split, ca, cb));
+                return ca;
+            }
+        });
+    }
+
+    public long getCountB() {
+        return countB.sum();
+    }
+
+    /**
+     * Removes and returns the next queued mismatch, or null.
+     */
+    public Mismatch pollMismatch() {
+        return mismatches.poll();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tries the primary executor (server-side COUNT(*)) first and, if that
+ * times out, counts the same split with the fallback (paging) instead.
+ * Each page only has to finish within the read timeout, so splits too
+ * dense to COUNT(*) in one read still complete without raising
+ * -readTimeout.  Other failures, and timeouts of the fallback itself,
+ * are passed on to the pipeline's retry and bisection logic.
+ */
+public class FallbackSplitExecutor implements SplitExecutor {
+    private final SplitExecutor primary;
+    private final SplitExecutor fallback;
+    private final int debug;
+    private final LongAdder fallbacks = new LongAdder();
+
+    public FallbackSplitExecutor(SplitExecutor primary, SplitExecutor fallback, int debug) {
+        this.primary = primary;
+        this.fallback = fallback;
+        this.debug = debug;
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(final Split split) {
+        return Futures.withFallback(primary.execute(split), new FutureFallback<Long>() {
+            @Override
+            public ListenableFuture<Long> create(Throwable t) {
+                if (!(t instanceof ReadTimeoutException) && !(t instanceof OperationTimedOutException))
+                    return Futures.immediateFailedFuture(t);
+                fallbacks.increment();
+                Debug.print(debug, "Paging " + split + " after COUNT(*) " + t.getClass().getSimpleName(), true, 1);
+                return fallback.execute(split);
+            }
+        });
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+
+/**
+ * Sends one speculative second attempt for a query still running past
+ * a percentile of the split latencies measured so far.  The driver
+ * sends it to the next host of the query plan, which for a split is
+ * another of its replicas (see TargetedLoadBalancingPolicy), and the
+ * first response wins.  Only idempotent statements are hedged by the
+ * driver, so the split statements are prepared idempotent.
+ *
+ * The delay is re-read from the metrics at most once a second, and
+ * nothing is hedged before MIN_SAMPLES splits have completed.  Hedges
+ * are capped at a fraction of all queries, so a slow cluster is not
+ * sent twice the load.
+ */
+public class HedgingPolicy implements SpeculativeExecutionPolicy {
+    private static final long MIN_SAMPLES = 100;
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double percentile;
+    private final double budget;
+    private final LongAdder queries = new LongAdder();
+    private final AtomicLong hedges = new AtomicLong(0);
+    private volatile CountMetrics metrics = null;
+    private volatile long delayMillis = -1;
+    private volatile long refreshedNanos;
+
+    /**
+     * percentile is between 0 and 1; budget is the largest fraction of
+     * queries that may be hedged.
+     */
+    public HedgingPolicy(double percentile, double budget) {
+        this.percentile = percentile;
+        this.budget = budget;
+        this.refreshedNanos = System.nanoTime() - REFRESH_NANOS;
+    }
+
+    /**
+     * Where the split latencies come from.  Nothing is hedged until
+     * this is set.
+     */
+    public void setMetrics(CountMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+    }
+
+    @Override
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+        queries.increment();
+        return new SpeculativeExecutionPlan() {
+            private boolean scheduled = false;
+
+            @Override
+            public long nextExecution(Host lastQueried) {
+                if (scheduled) {
+                    // Asked again only once the hedge has been sent
+                    hedges.incrementAndGet();
+                    CountMetrics m = metrics;
+                    if (null != m)
+                        m.recordHedge();
+                    return -1;
+                }
+                scheduled = true;
+                if (hedges.get() >= budget * queries.sum())
+                    return -1;
+                return delay();
+            }
+        };
+    }
+
+    private long delay() {
+        CountMetrics m = metrics;
+        if ((null == m) || (m.getSplitsDone() < MIN_SAMPLES))
+            return -1;
+        long now = System.nanoTime();
+        if (now - refreshedNanos >= REFRESH_NANOS) {
+            delayMillis = Math.max(1, TimeUnit.MICROSECONDS.toMillis(m.latencyMicros(percentile)));
+            refreshedNanos = now;
+        }
+        return delayMillis;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.datastax.driver.core.Metadata;
+
+/**
+ * CQL identifiers as the driver treats them: case-insensitive unless
+ * double-quoted.  The driver's own handleId is not public in 3.0, and
+ * quoteIfNecessary only arrives in later versions.
+ */
+final class Identifiers {
+    private static final Pattern UNQUOTED = Pattern.compile("\\w+");
+    private static final Pattern LOWERCASE = Pattern.compile("[a-z][a-z0-9_]*");
+    // CQL's reserved keywords, which must be quoted to be used as names
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+            "add", "allow", "alter", "and", "apply", "asc", "authorize", "batch", "begin", "by",
+            "columnfamily", "create", "default", "delete", "desc", "describe", "drop", "entries",
+            "execute", "from", "full", "grant", "if", "in", "index", "infinity", "insert", "into",
+            "is", "keyspace", "limit", "materialized", "mbean", "mbeans", "modify", "nan",
+            "norecursive", "not", "null", "of", "on", "or", "order", "primary", "rename", "replace",
+            "revoke", "schema", "select", "set", "table", "to", "token", "truncate", "unlogged",
+            "unset", "update", "use", "using", "view", "where", "with"));
+
+    private Identifiers() {
+    }
+
+    /**
+     * True if id names one identifier, quoted or not, rather than being
+     * a pattern.
+     */
+    static boolean isIdentifier(String id) {
+        return UNQUOTED.matcher(id).matches()
+                || ((2 <= id.length()) && id.startsWith("\"") && id.endsWith("\""));
+    }
+
+    /**
+     * The name id refers to: lowercased if unquoted, unquoted if
+     * double-quoted, otherwise as given.
+     */
+    static String handleId(String id) {
+        if (null == id)
+            return null;
+        if (UNQUOTED.matcher(id).matches())
+            return id.toLowerCase();
+        if ((2 <= id.length()) && id.startsWith("\"") && id.endsWith("\""))
+            return id.substring(1, id.length() - 1).replace("\"\"", "\"");
+        return id;
+    }
+
+    /**
+     * name as it must be written in CQL: quoted unless it is already
+     * lowercase alphanumeric and not a reserved keyword.
+     */
+    static String quoteIfNecessary(String name) {
+        return (LOWERCASE.matcher(name).matches() && !RESERVED.contains(name)) ? name : Metadata.quote(name);
+    }
+}
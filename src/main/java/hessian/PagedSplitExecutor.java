@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Counts the rows a token-range SELECT returns by paging through them
+ * on the client, instead of having the server COUNT(*) them.  Pages
+ * are requested asynchronously, one at a time, and each is consumed
+ * before the next is fetched, so memory stays at one page per split
+ * in flight.
+ *
+ * The statement must select only the partition key columns.  When a
+ * partitions counter is given, rows whose key differs from the row
+ * before count as a new partition, so one scan yields both rows and
+ * partitions; rows come back in token order, so a partition's rows are
+ * always adjacent.  Partitions are only added once the whole split has
+ * been read, so a split that fails part way and is retried or
+ * bisected is not counted twice.
+ *
+ * With a SkewReport set, the rows of each partition are counted too,
+ * and each split's widest partitions are handed to the report once the
+ * split completes.
+ *
+ * When the statement selects more than the key, setKeyColumns() says
+ * how many of the leading columns it is.  With SplitAggregates set, the
+ * WRITETIME() asked for is the last column, and the sizes of all other
+ * columns are added up for the byte total.  With a RowFilter set, rows
+ * it does not match are skipped, as if the server had filtered them.
+ */
+public class PagedSplitExecutor implements SplitExecutor {
+    private final Session session;
+    private final PreparedStatement ps;
+    private final int fetchSize;
+    private final LongAdder partitions;
+    private SkewReport skewReport = null;
+    private SplitAggregates aggregates = null;
+    private RowFilter filter = null;
+    private int keyColumns = -1;
+
+    public PagedSplitExecutor(Session session, PreparedStatement ps, int fetchSize, LongAdder partitions) {
+        this.session = session;
+        this.ps = ps;
+        this.fetchSize = fetchSize;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Collects the widest partitions.  The statement must then select
+     * the partition key columns, not their token.
+     */
+    public void setSkewReport(SkewReport skewReport) {
+        this.skewReport = skewReport;
+    }
+
+    public void setKeyColumns(int keyColumns) {
+        this.keyColumns = keyColumns;
+    }
+
+    public void setAggregates(SplitAggregates aggregates) {
+        this.aggregates = aggregates;
+    }
+
+    public void setFilter(RowFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(Split split) {
+        Statement bs = split.bind(ps).setFetchSize(fetchSize);
+        if (null != split.getHost())
+            bs = new RoutedStatement(bs, split.getHost(), split.getReplicas());
+        Pager pager = new Pager();
+        pager.fetched(session.executeAsync(bs));
+        return pager.result;
+    }
+
+    private class Pager implements FutureCallback<ResultSet> {
+        final SettableFuture<Long> result = SettableFuture.create();
+        long rows = 0;
+        long parts = 0;
+        final boolean keyed = (null != partitions) || (null != skewReport);
+        final SkewReport.TopN widest = (null != skewReport) ? skewReport.newPartitionTopN() : null;
+        final SplitAggregates.Partial partial = (null != aggregates) ? aggregates.newPartial() : null;
+        ByteBuffer[] lastKey = null;
+        Row keyRow = null;
+        long keyRows = 0;
+
+        void fetched(ListenableFuture<ResultSet> page) {
+            Futures.addCallback(page, this);
+        }
+
+        @Override
+        public void onSuccess(ResultSet rs) {
+            try {
+                for (int n = rs.getAvailableWithoutFetching(); n > 0; n--)
+                    consume(rs.one());
+                if (!rs.isFullyFetched()) {
+                    fetched(rs.fetchMoreResults());
+                    return;
+                }
+                if (null != partitions)
+                    partitions.add(parts);
+                if (null != widest) {
+                    endPartition();
+                    skewReport.addPartitions(widest);
+                }
+                if (null != partial)
+                    partial.merge();
+                result.set(rows);
+            } catch (RuntimeException e) {
+                result.setException(e);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            result.setException(t);
+        }
+
+        private void consume(Row row) {
+            if ((null != filter) && !filter.matches(row))
+                return;
+            rows++;
+            if (null != partial)
+                aggregate(row);
+            if (!keyed)
+                return;
+            int n = (0 <= keyColumns) ? keyColumns : row.getColumnDefinitions().size();
+            ByteBuffer[] key = new ByteBuffer[n];
+            boolean same = (null != lastKey);
+            for (int i = 0; i < n; i++) {
+                key[i] = row.getBytesUnsafe(i);
+                same = same && key[i].equals(lastKey[i]);
+            }
+            lastKey = key;
+            if (same) {
+                keyRows++;
+                return;
+            }
+            parts++;
+            if (null != widest) {
+                endPartition();
+                keyRow = row;
+                keyRows = 1;
+            }
+        }
+
+        private void aggregate(Row row) {
+            int n = row.getColumnDefinitions().size();
+            if (null != aggregates.getWritetimeColumn()) {
+                n--;
+                if (!row.isNull(n))
+                    partial.addWritetime(row.getLong(n));
+            }
+            if (aggregates.isBytes()) {
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer b = row.getBytesUnsafe(i);
+                    if (null != b)
+                        partial.addBytes(b.remaining());
+                }
+            }
+        }
+
+        private void endPartition() {
+            if ((null != keyRow) && widest.accepts(keyRows))
+                widest.offer(keyRows, SkewReport.formatKey(keyRow, (0 <= keyColumns) ? keyColumns : keyRow.getColumnDefinitions().size()));
+            keyRow = null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the token ranges whose counts differ between the two sides of
+ * a DiffSplitExecutor.  After the planned splits have been counted,
+ * each split that differs is bisected and only its halves are counted
+ * again, round after round, until the differing ranges are narrower
+ * than twice minWidth.  Past the first round, the work grows with the
+ * number of differences, not with the size of the table.
+ *
+ * A differing range whose halves both match (rows written during the
+ * diff, say) is reported as it is.
+ */
+public class RangeDiff {
+    private final SplitPipeline pipeline;
+    private final DiffSplitExecutor executor;
+    private final CountMetrics metrics;
+    private final BigInteger minWidth;
+    private final int debug;
+    private final List<DiffSplitExecutor.Mismatch> differences = new ArrayList<>();
+    private long countA = 0;
+    private long countB = 0;
+
+    public RangeDiff(SplitPipeline pipeline, DiffSplitExecutor executor, CountMetrics metrics,
+                     BigInteger minWidth, int debug) {
+        this.pipeline = pipeline;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.minWidth = minWidth;
+        this.debug = debug;
+    }
+
+    /**
+     * Counts the splits on both sides and drills into the differences.
+     * Returns false if the pipeline failed; the failure is available
+     * from the pipeline.
+     */
+    public boolean run(Iterator<Split> splits) {
+        if (!pipeline.run(splits))
+            return false;
+        countA = pipeline.getCount();
+        countB = executor.getCountB();
+        List<DiffSplitExecutor.Mismatch> parents = new ArrayList<>();
+        List<Split> next = drill(parents);
+        for (int round = 1; !next.isEmpty(); round++) {
+            Debug.print(debug, "Round " + round + ": counting " + next.size() + " halves of differing ranges", true, 1);
+            metrics.addPlanned(next.size());
+            if (!pipeline.run(next.iterator()))
+                return false;
+            next = drill(parents);
+        }
+        Collections.sort(differences, (x, y) -> x.split.compareTo(y.split));
+        return true;
+    }
+
+    /**
+     * Bisects the differing splits of the last round.  Those too narrow
+     * to bisect are final, as are last round's parents none of whose
+     * halves differed.  parents is replaced by the splits bisected now.
+     */
+    private List<Split> drill(List<DiffSplitExecutor.Mismatch> parents) {
+        List<Split> next = new ArrayList<>();
+        List<DiffSplitExecutor.Mismatch> bisected = new ArrayList<>();
+        Set<Object> resolved = new HashSet<>();
+        DiffSplitExecutor.Mismatch m;
+        while (null != (m = executor.pollMismatch())) {
+            if (null != m.split.getOwner())
+                resolved.add(m.split.getOwner());
+            Split[] halves = m.split.bisect(minWidth);
+            if (null == halves) {
+                differences.add(m);
+                continue;
+            }
+            halves[0].setOwner(m);
+            halves[1].setOwner(m);
+            next.add(halves[0]);
+            next.add(halves[1]);
+            bisected.add(m);
+        }
+        for (DiffSplitExecutor.Mismatch p : parents)
+            if (!resolved.contains(p))
+                differences.add(p);
+        parents.clear();
+        parents.addAll(bisected);
+        return next;
+    }
+
+    public long getCountA() {
+        return countA;
+    }
+
+    public long getCountB() {
+        return countB;
+    }
+
+    /**
+     * The differing ranges, in token order.
+     */
+    public List<DiffSplitExecutor.Mismatch> getDifferences() {
+        return differences;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+/**
+ * Orders splits so consecutive queries go to different replicas.
+ * The plan's segments are grouped by the local replicas that own them
+ * and splits are handed out round-robin across the groups, preferring
+ * a group with a replica below maxPerHost in-flight queries.  route()
+ * then pins each split to its least busy replica, waiting if all of
+ * them are at maxPerHost.
+ *
+ * Replicas are looked up once per segment, in the driver's Metadata or
+ * in a TokenRing read at -fastStart, so the plan must be cut at the
+ * ring's tokens (SplitPlan.cutAt) for each split to reach its own
+ * replicas.  Splits are generated from the plan only as they are
+ * handed out.
+ */
+public class ReplicaScheduler implements Iterator<Split> {
+    private final SplitPlan plan;
+    private final Function<Split, Set<Host>> replicas;
+    private final LoadBalancingPolicy policy;
+    private final int maxPerHost;
+    private final List<Group> groups = new ArrayList<>();
+    private final Map<Host, AtomicInteger> inFlight;
+    private volatile Thread waiter = null;
+    private int cursor = 0;
+    private long remaining = 0;
+
+    // The segments owned by one replica set, and how far into them we are
+    private static class Group {
+        final List<Host> hosts;
+        int[] segments = new int[4];
+        int numSegments = 0;
+        int current = 0;
+        long next = 0;
+
+        Group(List<Host> hosts) {
+            this.hosts = hosts;
+        }
+
+        void add(int segment) {
+            if (numSegments == segments.length)
+                segments = Arrays.copyOf(segments, numSegments * 2);
+            segments[numSegments++] = segment;
+        }
+
+        boolean isEmpty() {
+            return current >= numSegments;
+        }
+    }
+
+    /**
+     * maxPerHost of 0 means no per-host limit; the splits are still
+     * interleaved across replicas.
+     */
+    public ReplicaScheduler(SplitPlan plan, final Metadata metadata, final String keyspace,
+                            LoadBalancingPolicy policy, int maxPerHost) {
+        this(plan, s -> metadata.getReplicas(keyspace, metadata.newTokenRange(
+                metadata.newToken(s.beginString()), metadata.newToken(s.endString()))),
+                policy, maxPerHost, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * For a cluster built without metadata, with the replicas read from
+     * the system tables.
+     */
+    public ReplicaScheduler(SplitPlan plan, TokenRing ring, LoadBalancingPolicy policy, int maxPerHost) {
+        this(plan, ring::replicasOf, policy, maxPerHost, new ConcurrentHashMap<>());
+    }
+
+    private ReplicaScheduler(SplitPlan plan, Function<Split, Set<Host>> replicas, LoadBalancingPolicy policy,
+                             int maxPerHost, Map<Host, AtomicInteger> inFlight) {
+        this.inFlight = inFlight;
+        this.plan = plan;
+        this.replicas = replicas;
+        this.policy = policy;
+        this.maxPerHost = maxPerHost;
+        Map<List<Host>, Group> byReplicas = new LinkedHashMap<>();
+        for (int seg = 0; seg < plan.getNumSegments(); seg++)
+            byReplicas.computeIfAbsent(replicasOf(plan.segment(seg)), Group::new).add(seg);
+        groups.addAll(byReplicas.values());
+        remaining = plan.getTotalSplits();
+    }
+
+    /**
+     * A scheduler for another plan in the same keyspace that shares this
+     * one's per-host in-flight counts, so splits of several tables are
+     * held to one maxPerHost.  Routing and releasing can then be done
+     * through either scheduler.
+     */
+    public ReplicaScheduler forPlan(SplitPlan other) {
+        return new ReplicaScheduler(other, replicas, policy, maxPerHost, inFlight);
+    }
+
+    private List<Host> replicasOf(Split s) {
+        Set<Host> all = replicas.apply(s);
+        List<Host> local = new ArrayList<>();
+        for (Host h : all)
+            if (HostDistance.LOCAL == policy.distance(h))
+                local.add(h);
+        return local;
+    }
+
+    public int getNumGroups() {
+        return groups.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return 0 < remaining;
+    }
+
+    @Override
+    public Split next() {
+        if (0 == remaining)
+            throw new NoSuchElementException();
+        int n = groups.size();
+        int fallback = -1;
+        for (int k = 0; k < n; k++) {
+            int g = (cursor + k) % n;
+            if (groups.get(g).isEmpty())
+                continue;
+            if (-1 == fallback)
+                fallback = g;
+            if (hasCapacity(groups.get(g).hosts)) {
+                fallback = g;
+                break;
+            }
+        }
+        cursor = (fallback + 1) % n;
+        remaining--;
+
+        Group group = groups.get(fallback);
+        int seg = group.segments[group.current];
+        Split s = plan.split(seg, group.next);
+        s.setReplicas(group.hosts);
+        if (++group.next >= plan.getNumSplits(seg)) {
+            group.current++;
+            group.next = 0;
+        }
+        return s;
+    }
+
+    private boolean hasCapacity(List<Host> hosts) {
+        if ((0 == maxPerHost) || hosts.isEmpty())
+            return true;
+        for (Host h : hosts)
+            if (h.isUp() && (counter(h).get() < maxPerHost))
+                return true;
+        return false;
+    }
+
+    private AtomicInteger counter(Host h) {
+        return inFlight.computeIfAbsent(h, k -> new AtomicInteger(0));
+    }
+
+    /**
+     * Pins the split to its least busy live replica, or to none if no
+     * local replica is up.  Blocks while every replica is at maxPerHost.
+     * Every routed split must be passed to release() when it finishes.
+     */
+    public void route(Split s) {
+        if (null == s.getReplicas())
+            s.setReplicas(replicasOf(s));
+        while (true) {
+            Host best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (Host h : s.getReplicas()) {
+                if (!h.isUp())
+                    continue;
+                int load = counter(h).get();
+                if (load < bestLoad) {
+                    best = h;
+                    bestLoad = load;
+                }
+            }
+            if (null == best) {
+                s.setHost(null);
+                return;
+            }
+            if ((0 == maxPerHost) || (bestLoad < maxPerHost)) {
+                counter(best).incrementAndGet();
+                s.setHost(best);
+                return;
+            }
+            waiter = Thread.currentThread();
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+            waiter = null;
+        }
+    }
+
+    public void release(Split s) {
+        Host h = s.getHost();
+        if (null == h)
+            return;
+        s.setHost(null);
+        counter(h).decrementAndGet();
+        Thread w = waiter;
+        if (null != w)
+            LockSupport.unpark(w);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.List;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.StatementWrapper;
+
+/**
+ * A statement that TargetedLoadBalancingPolicy sends to a chosen host
+ * first, and then to the other replicas of its range.  The split
+ * queries bind token values, not partition keys, so TokenAwarePolicy
+ * alone has no routing key to work with.
+ */
+public class RoutedStatement extends StatementWrapper {
+    private final Host host;
+    private final List<Host> replicas;
+
+    /**
+     * replicas may be null.
+     */
+    public RoutedStatement(Statement wrapped, Host host, List<Host> replicas) {
+        super(wrapped);
+        this.host = host;
+        this.replicas = replicas;
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    public List<Host> getReplicas() {
+        return replicas;
+    }
+}
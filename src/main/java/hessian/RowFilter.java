@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.exceptions.DriverException;
+
+/**
+ * A -where predicate evaluated on the client, for servers that will
+ * not filter on its columns.  Understands conjunctions of
+ *
+ *   column = | != | < | <= | > | >= literal
+ *   column IN (literal, ...)
+ *   column CONTAINS literal
+ *   column CONTAINS KEY literal
+ *
+ * where a literal is written as in CQL: a number, a 'quoted string',
+ * true or false, or a bare word such as a UUID or a 0x blob.  Once the
+ * column types are known (bind()), each literal is parsed with its
+ * column's codec, or the element's for CONTAINS, and values are
+ * compared as Cassandra orders them: uuids by version and time, blobs
+ * and inet addresses as unsigned bytes.  A null value matches nothing.
+ */
+public class RowFilter {
+    private static class Condition {
+        final String column;
+        final String op;
+        final List<String> literals;
+        List<Object> values = null;
+
+        Condition(String column, String op, List<String> literals) {
+            this.column = column;
+            this.op = op;
+            this.literals = literals;
+        }
+    }
+
+    private final List<Condition> conditions = new ArrayList<>();
+    private volatile boolean bound = false;
+
+    /**
+     * Throws IllegalArgumentException, saying why, if the predicate is
+     * not one this class can evaluate.
+     */
+    public static RowFilter parse(String where) {
+        RowFilter filter = new RowFilter();
+        Tokenizer t = new Tokenizer(where);
+        do {
+            String column = t.identifier();
+            String op = t.operator();
+            List<String> literals = new ArrayList<>();
+            if ("IN".equals(op)) {
+                t.expect("(");
+                do {
+                    literals.add(t.literal());
+                } while (t.accept(","));
+                t.expect(")");
+            } else {
+                if ("CONTAINS".equals(op) && t.acceptWord("KEY"))
+                    op = "CONTAINS KEY";
+                literals.add(t.literal());
+            }
+            filter.conditions.add(new Condition(column, op, literals));
+        } while (t.acceptWord("AND"));
+        if (!t.atEnd())
+            throw new IllegalArgumentException("unexpected " + t.rest());
+        return filter;
+    }
+
+    /**
+     * The columns the predicate reads, as written, to add to the
+     * selection.
+     */
+    public Set<String> getColumns() {
+        Set<String> columns = new LinkedHashSet<>();
+        for (Condition c : conditions)
+            columns.add(c.column);
+        return columns;
+    }
+
+    /**
+     * Parses the literals for the columns' types, given each column's
+     * type by name as written.  Throws IllegalArgumentException, saying
+     * why, if a column does not exist, a literal is not a value of its
+     * column, CONTAINS is used on a column that is not a collection, or
+     * a type without an order is compared with <, <=, > or >=.
+     */
+    public synchronized void bind(Function<String, DataType> types) {
+        for (Condition c : conditions) {
+            DataType type = types.apply(c.column);
+            if (null == type)
+                throw new IllegalArgumentException("no column " + c.column);
+            if (c.op.startsWith("CONTAINS")) {
+                if (!type.isCollection())
+                    throw new IllegalArgumentException(c.column + " is not a collection");
+                List<DataType> args = type.getTypeArguments();
+                if ("CONTAINS KEY".equals(c.op) && (2 != args.size()))
+                    throw new IllegalArgumentException(c.column + " is not a map");
+                type = ("CONTAINS".equals(c.op) && (2 == args.size())) ? args.get(1) : args.get(0);
+            }
+            TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(type);
+            if ((c.op.startsWith("<") || c.op.startsWith(">")) && !ordered(codec))
+                throw new IllegalArgumentException(c.column + " " + c.op + ": " + type + " values have no order");
+            List<Object> values = new ArrayList<>();
+            for (String literal : c.literals) {
+                try {
+                    values.add(codec.parse(literal));
+                } catch (DriverException e) {
+                    throw new IllegalArgumentException(literal + " is not a " + type + " for " + c.column + ": " + e.getMessage());
+                }
+            }
+            c.values = values;
+        }
+        bound = true;
+    }
+
+    private static boolean ordered(TypeCodec<Object> codec) {
+        Class<?> c = codec.getJavaType().getRawType();
+        return Comparable.class.isAssignableFrom(c) || InetAddress.class.isAssignableFrom(c);
+    }
+
+    /**
+     * Binds from the row's column types if bind() was not called.
+     */
+    public boolean matches(Row row) {
+        if (!bound)
+            bind(row.getColumnDefinitions()::getType);
+        for (Condition c : conditions)
+            if (!matches(c, row.getObject(c.column)))
+                return false;
+        return true;
+    }
+
+    private static boolean matches(Condition c, Object value) {
+        if (null == value)
+            return false;
+        Object literal = c.values.get(0);
+        switch (c.op) {
+            case "=":
+                return equal(value, literal);
+            case "!=":
+                return (null != literal) && !equal(value, literal);
+            case "<":
+                return (null != literal) && (0 > compare(value, literal));
+            case "<=":
+                return (null != literal) && (0 >= compare(value, literal));
+            case ">":
+                return (null != literal) && (0 < compare(value, literal));
+            case ">=":
+                return (null != literal) && (0 <= compare(value, literal));
+            case "IN":
+                for (Object v : c.values)
+                    if (equal(value, v))
+                        return true;
+                return false;
+            case "CONTAINS":
+            case "CONTAINS KEY":
+                Collection<?> elements;
+                if (value instanceof Map)
+                    elements = "CONTAINS KEY".equals(c.op) ? ((Map<?, ?>) value).keySet() : ((Map<?, ?>) value).values();
+                else
+                    elements = (Collection<?>) value;
+                for (Object e : elements)
+                    if ((null != e) && equal(e, literal))
+                        return true;
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    // compareTo, not equals, so that 1.0 = 1.00 for decimals
+    private static boolean equal(Object value, Object literal) {
+        if (null == literal)
+            return false;
+        if ((value instanceof Comparable) || (value instanceof InetAddress))
+            return 0 == compare(value, literal);
+        return value.equals(literal);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object value, Object literal) {
+        if (value instanceof UUID)
+            return compareUuids((UUID) value, (UUID) literal);
+        if (value instanceof ByteBuffer)
+            return compareUnsigned((ByteBuffer) value, (ByteBuffer) literal);
+        // Cassandra orders text by its UTF-8 bytes, not by UTF-16 code units
+        if (value instanceof String)
+            return compareUnsigned(ByteBuffer.wrap(((String) value).getBytes(StandardCharsets.UTF_8)),
+                    ByteBuffer.wrap(((String) literal).getBytes(StandardCharsets.UTF_8)));
+        if (value instanceof InetAddress)
+            return compareUnsigned(ByteBuffer.wrap(((InetAddress) value).getAddress()),
+                    ByteBuffer.wrap(((InetAddress) literal).getAddress()));
+        return ((Comparable<Object>) value).compareTo(literal);
+    }
+
+    /**
+     * As Cassandra orders uuids: by version, then time-based ones by
+     * timestamp, then by unsigned bytes.
+     */
+    private static int compareUuids(UUID a, UUID b) {
+        int c = Integer.compare(a.version(), b.version());
+        if (0 != c)
+            return c;
+        if (1 == a.version()) {
+            c = Long.compare(a.timestamp(), b.timestamp());
+            if (0 != c)
+                return c;
+        }
+        c = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return (0 != c) ? c : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    private static int compareUnsigned(ByteBuffer a, ByteBuffer b) {
+        int n = Math.min(a.remaining(), b.remaining());
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(a.get(a.position() + i) & 0xff, b.get(b.position() + i) & 0xff);
+            if (0 != c)
+                return c;
+        }
+        return Integer.compare(a.remaining(), b.remaining());
+    }
+
+    private static class Tokenizer {
+        private final String s;
+        private int pos = 0;
+
+        Tokenizer(String s) {
+            this.s = s;
+        }
+
+        private void skipSpace() {
+            while ((pos < s.length()) && Character.isWhitespace(s.charAt(pos)))
+                pos++;
+        }
+
+        boolean atEnd() {
+            skipSpace();
+            return pos >= s.length();
+        }
+
+        String rest() {
+            return s.substring(pos);
+        }
+
+        boolean accept(String symbol) {
+            skipSpace();
+            if (!s.startsWith(symbol, pos))
+                return false;
+            pos += symbol.length();
+            return true;
+        }
+
+        void expect(String symbol) {
+            if (!accept(symbol))
+                throw new IllegalArgumentException("expected " + symbol + " at " + rest());
+        }
+
+        boolean acceptWord(String word) {
+            skipSpace();
+            int end = pos + word.length();
+            if ((end > s.length()) || !s.regionMatches(true, pos, word, 0, word.length())
+                    || ((end < s.length()) && isWordChar(s.charAt(end))))
+                return false;
+            pos = end;
+            return true;
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || ('_' == c) || ('-' == c) || ('.' == c);
+        }
+
+        private String word() {
+            skipSpace();
+            int start = pos;
+            while ((pos < s.length()) && isWordChar(s.charAt(pos)))
+                pos++;
+            if (start == pos)
+                throw new IllegalArgumentException("expected a name or value at " + rest());
+            return s.substring(start, pos);
+        }
+
+        String identifier() {
+            skipSpace();
+            if (accept("\"")) {
+                int end = s.indexOf('"', pos);
+                if (end < 0)
+                    throw new IllegalArgumentException("unterminated quoted name");
+                String name = s.substring(pos - 1, end + 1);
+                pos = end + 1;
+                return name;
+            }
+            return word();
+        }
+
+        String operator() {
+            for (String op : new String[]{"<=", ">=", "!=", "=", "<", ">"})
+                if (accept(op))
+                    return op;
+            if (acceptWord("IN"))
+                return "IN";
+            if (acceptWord("CONTAINS"))
+                return "CONTAINS";
+            throw new IllegalArgumentException("expected an operator at " + rest());
+        }
+
+        /**
+         * The literal as written, quotes included, for a codec to parse.
+         */
+        String literal() {
+            skipSpace();
+            int start = pos;
+            if (accept("'")) {
+                while (true) {
+                    int end = s.indexOf('\'', pos);
+                    if (end < 0)
+                        throw new IllegalArgumentException("unterminated string");
+                    pos = end + 1;
+                    if (!s.startsWith("'", pos))
+                        return s.substring(start, pos);
+                    pos++;
+                }
+            }
+            return word();
+        }
+    }
+}
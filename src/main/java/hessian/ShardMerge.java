@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The "merge" subcommand: reads the -shardResult files of a sharded
+ * count, checks that every shard of the same plan succeeded exactly
+ * once, that together they cover the planned ranges with no gaps or
+ * overlaps and, unless the plan was limited to -beginToken and
+ * -endToken, that the plan covers the whole ring, and prints the total.
+ */
+public class ShardMerge {
+    private static final int MAX_LISTED = 10;
+    private static final Comparator<BigInteger[]> BY_BEGIN = (x, y) -> x[0].compareTo(y[0]);
+
+    private boolean ok = true;
+
+    private void problem(String str) {
+        System.err.println(str);
+        ok = false;
+    }
+
+    public boolean run(String[] files) {
+        if (0 == files.length) {
+            System.err.println("Usage: merge <shardResult> [<shardResult> ...]");
+            return false;
+        }
+        List<ShardResult> results = new ArrayList<>();
+        for (String f : files) {
+            try {
+                results.add(ShardResult.read(new File(f)));
+            } catch (IOException e) {
+                System.err.println("Could not read " + f + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        ShardResult first = results.get(0);
+        int n = first.numShards;
+        boolean[] seen = new boolean[n + 1];
+        long count = 0;
+        long partitions = 0;
+        List<BigInteger[]> covered = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            ShardResult r = results.get(i);
+            String name = files[i] + " (shard " + r.shard + "/" + r.numShards + ")";
+            if (!first.table.equals(r.table)) {
+                problem(name + " is for " + r.table + ", not " + first.table);
+                continue;
+            }
+            if ((r.numShards != n) || (r.shard < 1) || (r.shard > n)) {
+                problem(name + " is not one of " + n + " shards");
+                continue;
+            }
+            if (seen[r.shard])
+                problem(name + " is given more than once");
+            seen[r.shard] = true;
+            if (null != r.error)
+                problem(name + " failed: " + r.error);
+            if ((r.tokenRange != first.tokenRange) || !sameRanges(runs(r.planned), runs(first.planned)))
+                problem(name + " was planned differently from " + files[0] + "; run every shard with the same split options");
+            count += r.count;
+            partitions += Math.max(0, r.partitions);
+            covered.addAll(r.covered);
+        }
+        for (int s = 1; s <= n; s++)
+            if (!seen[s])
+                problem("Shard " + s + "/" + n + " is missing");
+
+        // Overlaps, then gaps and ranges outside the plan
+        covered.sort(BY_BEGIN);
+        List<BigInteger[]> overlaps = new ArrayList<>();
+        for (int i = 1; i < covered.size(); i++)
+            if (covered.get(i)[0].compareTo(covered.get(i - 1)[1]) < 0)
+                overlaps.add(new BigInteger[]{covered.get(i)[0], covered.get(i)[1].min(covered.get(i - 1)[1])});
+        listRanges("Overlap: ", overlaps);
+        List<BigInteger[]> plannedRuns = runs(first.planned);
+        List<BigInteger[]> coveredRuns = runs(covered);
+        listRanges("Gap: ", subtract(plannedRuns, coveredRuns));
+        listRanges("Outside the plan: ", subtract(coveredRuns, plannedRuns));
+        if (!first.tokenRange) {
+            List<BigInteger[]> ring = new ArrayList<>();
+            ring.add(first.ring);
+            listRanges("Not planned: ", subtract(ring, plannedRuns));
+            listRanges("Outside the ring: ", subtract(plannedRuns, ring));
+        }
+
+        if (!ok)
+            return false;
+        if (0 <= first.partitions)
+            System.out.println(first.table + ": " + count + " rows, " + partitions + " partitions");
+        else
+            System.out.println(first.table + ": " + count);
+        return true;
+    }
+
+    private void listRanges(String what, List<BigInteger[]> ranges) {
+        for (int i = 0; (i < ranges.size()) && (i < MAX_LISTED); i++)
+            problem(what + format(ranges.get(i)));
+        if (ranges.size() > MAX_LISTED)
+            problem("... and " + (ranges.size() - MAX_LISTED) + " more");
+    }
+
+    private static String format(BigInteger[] r) {
+        return "(" + r[0] + "," + r[1] + "]";
+    }
+
+    /**
+     * The ranges merged into sorted, disjoint, non-adjacent runs.
+     */
+    static List<BigInteger[]> runs(List<BigInteger[]> ranges) {
+        List<BigInteger[]> sorted = new ArrayList<>(ranges);
+        sorted.sort(BY_BEGIN);
+        List<BigInteger[]> runs = new ArrayList<>();
+        for (BigInteger[] r : sorted) {
+            BigInteger[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if ((null != last) && (r[0].compareTo(last[1]) <= 0))
+                last[1] = last[1].max(r[1]);
+            else
+                runs.add(new BigInteger[]{r[0], r[1]});
+        }
+        return runs;
+    }
+
+    private static boolean sameRanges(List<BigInteger[]> a, List<BigInteger[]> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++)
+            if (!a.get(i)[0].equals(b.get(i)[0]) || !a.get(i)[1].equals(b.get(i)[1]))
+                return false;
+        return true;
+    }
+
+    /**
+     * The parts of runs a that are not in runs b.
+     */
+    static List<BigInteger[]> subtract(List<BigInteger[]> a, List<BigInteger[]> b) {
+        List<BigInteger[]> out = new ArrayList<>();
+        int j = 0;
+        for (BigInteger[] r : a) {
+            BigInteger begin = r[0];
+            while ((j < b.size()) && (b.get(j)[1].compareTo(begin) <= 0))
+                j++;
+            int k = j;
+            while ((k < b.size()) && (b.get(k)[0].compareTo(r[1]) < 0)) {
+                if (b.get(k)[0].compareTo(begin) > 0)
+                    out.add(new BigInteger[]{begin, b.get(k)[0]});
+                begin = begin.max(b.get(k)[1]);
+                k++;
+            }
+            if (begin.compareTo(r[1]) < 0)
+                out.add(new BigInteger[]{begin, r[1]});
+        }
+        return out;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partial result of one -shard worker: which table, which shard,
+ * the partitioner's ring, whether the plan was limited to -beginToken
+ * and -endToken, the ranges of the whole plan and of this shard's part
+ * of it, and the count or the error.  Written as "key value" lines, one
+ * "planned" or "covered" line per (begin,end] range, so "merge" can
+ * check the shards against each other and the ring without connecting
+ * to the cluster.
+ */
+public class ShardResult {
+    private static final String HEADER = "#cassandra-count-shard";
+
+    String table;
+    int shard;
+    int numShards;
+    long count = 0;
+    long partitions = -1;
+    String error = null;
+    BigInteger[] ring = null;
+    boolean tokenRange = false;
+    final List<BigInteger[]> planned = new ArrayList<>();
+    final List<BigInteger[]> covered = new ArrayList<>();
+
+    public ShardResult() {
+    }
+
+    public ShardResult(String table, int shard, int numShards, SplitPlan plan, SplitPlan slice, boolean tokenRange) {
+        this.table = table;
+        this.shard = shard;
+        this.numShards = numShards;
+        this.ring = new BigInteger[]{plan.getMinToken(), plan.getMaxToken()};
+        this.tokenRange = tokenRange;
+        addRanges(plan, planned);
+        addRanges(slice, covered);
+    }
+
+    private static void addRanges(SplitPlan plan, List<BigInteger[]> ranges) {
+        for (int seg = 0; seg < plan.getNumSegments(); seg++) {
+            Split s = plan.segment(seg);
+            ranges.add(new BigInteger[]{new BigInteger(s.beginString()), new BigInteger(s.endString())});
+        }
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public void setPartitions(long partitions) {
+        this.partitions = partitions;
+    }
+
+    public void setError(Throwable t) {
+        this.error = t.getClass().getSimpleName() + ": " + t.getMessage();
+    }
+
+    public void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println(HEADER);
+            out.println("table " + table);
+            out.println("shard " + shard + "/" + numShards);
+            out.println("status " + ((null == error) ? "ok" : "failed"));
+            if (null != error)
+                out.println("error " + error.replace('\n', ' '));
+            out.println("count " + count);
+            out.println("ring " + ring[0] + "," + ring[1]);
+            out.println("tokenRange " + tokenRange);
+            if (0 <= partitions)
+                out.println("partitions " + partitions);
+            for (BigInteger[] r : planned)
+                out.println("planned " + r[0] + "," + r[1]);
+            for (BigInteger[] r : covered)
+                out.println("covered " + r[0] + "," + r[1]);
+            if (out.checkError())
+                throw new IOException("Error writing " + file);
+        }
+    }
+
+    public static ShardResult read(File file) throws IOException {
+        ShardResult r = new ShardResult();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if ((null == line) || !line.equals(HEADER))
+                throw new IOException(file + " is not a shard result");
+            while (null != (line = reader.readLine())) {
+                int sp = line.indexOf(' ');
+                if (sp < 0)
+                    continue;
+                String key = line.substring(0, sp);
+                String value = line.substring(sp + 1);
+                try {
+                    switch (key) {
+                        case "table":
+                            r.table = value;
+                            break;
+                        case "shard":
+                            String[] f = value.split("/");
+                            r.shard = Integer.parseInt(f[0]);
+                            r.numShards = Integer.parseInt(f[1]);
+                            break;
+                        case "error":
+                            r.error = value;
+                            break;
+                        case "count":
+                            r.count = Long.parseLong(value);
+                            break;
+                        case "partitions":
+                            r.partitions = Long.parseLong(value);
+                            break;
+                        case "ring":
+                            String[] b = value.split(",");
+                            r.ring = new BigInteger[]{new BigInteger(b[0]), new BigInteger(b[1])};
+                            break;
+                        case "tokenRange":
+                            r.tokenRange = Boolean.parseBoolean(value);
+                            break;
+                        case "planned":
+                        case "covered":
+                            String[] t = value.split(",");
+                            BigInteger[] range = new BigInteger[]{new BigInteger(t[0]), new BigInteger(t[1])};
+                            ("planned".equals(key) ? r.planned : r.covered).add(range);
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Bad line in " + file + ": " + line);
+                }
+            }
+        }
+        if ((null == r.table) || (0 == r.numShards) || (null == r.ring))
+            throw new IOException(file + " is incomplete");
+        return r;
+    }
+}
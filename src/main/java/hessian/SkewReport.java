@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Where the rows are: a histogram of rows per split, the densest
+ * splits and, when splits are paged, the widest partitions.  Splits
+ * and partitions are kept in bounded top-N heaps and the histogram has
+ * one bucket per power of two, so memory does not grow with the table.
+ *
+ * Written as JSON if the file name ends in .json, otherwise as CSV
+ * with one "kind,key,value" line per entry.
+ */
+public class SkewReport implements SplitListener {
+    private static final int BUCKETS = 65;
+
+    private final String keyspace;
+    private final String table;
+    private final int topN;
+    private final TopN densestSplits;
+    private final TopN widestPartitions;
+    // Bucket 0 holds empty splits, bucket k splits of [2^(k-1), 2^k) rows
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAccumulator maxRows = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Bounded min-heap keeping the heaviest labels offered to it.
+     */
+    public static class TopN {
+        private final int size;
+        private final PriorityQueue<Entry> heap = new PriorityQueue<>();
+
+        public TopN(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Whether offer() would keep an entry of this weight, so callers
+         * can skip building labels that would be dropped.
+         */
+        public synchronized boolean accepts(long weight) {
+            return (heap.size() < size) || ((0 < size) && (weight > heap.peek().weight));
+        }
+
+        public synchronized void offer(long weight, String label) {
+            if (!accepts(weight))
+                return;
+            heap.add(new Entry(weight, label));
+            if (heap.size() > size)
+                heap.poll();
+        }
+
+        public synchronized void addAll(TopN other) {
+            for (Entry e : other.sorted())
+                offer(e.weight, e.label);
+        }
+
+        /**
+         * Heaviest first.
+         */
+        public synchronized List<Entry> sorted() {
+            List<Entry> list = new ArrayList<>(heap);
+            Collections.sort(list, Collections.reverseOrder());
+            return list;
+        }
+    }
+
+    public static class Entry implements Comparable<Entry> {
+        final long weight;
+        final String label;
+
+        Entry(long weight, String label) {
+            this.weight = weight;
+            this.label = label;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Long.compare(weight, o.weight);
+        }
+    }
+
+    public SkewReport(String keyspace, String table, int topN) {
+        this.keyspace = keyspace;
+        this.table = table;
+        this.topN = topN;
+        this.densestSplits = new TopN(topN);
+        this.widestPartitions = new TopN(topN);
+    }
+
+    @Override
+    public void onComplete(Split split, long count) {
+        histogram.incrementAndGet(64 - Long.numberOfLeadingZeros(count));
+        splits.increment();
+        rows.add(count);
+        maxRows.accumulate(count);
+        if (densestSplits.accepts(count))
+            densestSplits.offer(count, split.toString());
+    }
+
+    /**
+     * A heap for one split's partitions, merged by addPartitions() once
+     * the split has been read completely.
+     */
+    public TopN newPartitionTopN() {
+        return new TopN(topN);
+    }
+
+    public void addPartitions(TopN partitions) {
+        widestPartitions.addAll(partitions);
+    }
+
+    /**
+     * The partition key in the first columns of a row, with components
+     * separated by ':'.
+     */
+    public static String formatKey(Row row, int columns) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns; i++) {
+            if (0 < i)
+                sb.append(':');
+            sb.append(row.getObject(i));
+        }
+        return sb.toString();
+    }
+
+    public void write(File file, long count) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            if (file.getName().endsWith(".json"))
+                writeJson(out, count);
+            else
+                writeCsv(out, count);
+            if (out.checkError())
+                throw new IOException("Error writing " + file);
+        }
+    }
+
+    private double meanRows() {
+        long n = splits.sum();
+        return (0 == n) ? 0 : (double) rows.sum() / n;
+    }
+
+    private void writeCsv(PrintWriter out, long count) {
+        out.println("kind,key,value");
+        out.println("count," + csv(keyspace + "." + table) + "," + count);
+        out.println("splits,," + splits.sum());
+        out.println("meanRowsPerSplit,," + String.format(Locale.ROOT, "%.1f", meanRows()));
+        out.println("maxRowsPerSplit,," + maxRows.get());
+        for (int k = 0; k < BUCKETS; k++)
+            if (0 < histogram.get(k))
+                out.println("rowsPerSplit," + bucketLabel(k) + "," + histogram.get(k));
+        for (Entry e : densestSplits.sorted())
+            out.println("split," + csv(e.label) + "," + e.weight);
+        for (Entry e : widestPartitions.sorted())
+            out.println("partition," + csv(e.label) + "," + e.weight);
+    }
+
+    private void writeJson(PrintWriter out, long count) {
+        out.println("{");
+        out.println("  \"keyspace\": " + json(keyspace) + ",");
+        out.println("  \"table\": " + json(table) + ",");
+        out.println("  \"count\": " + count + ",");
+        out.println("  \"splits\": " + splits.sum() + ",");
+        out.println("  \"meanRowsPerSplit\": " + String.format(Locale.ROOT, "%.1f", meanRows()) + ",");
+        out.println("  \"maxRowsPerSplit\": " + maxRows.get() + ",");
+        out.println("  \"rowsPerSplit\": [");
+        String sep = "";
+        for (int k = 0; k < BUCKETS; k++) {
+            if (0 == histogram.get(k))
+                continue;
+            long lo = (0 == k) ? 0 : 1L << (k - 1);
+            long hi = (0 == k) ? 0 : (64 == k) ? Long.MAX_VALUE : (1L << k) - 1;
+            out.print(sep + "    {\"min\": " + lo + ", \"max\": " + hi + ", \"splits\": " + histogram.get(k) + "}");
+            sep = ",\n";
+        }
+        out.println("\n  ],");
+        out.println("  \"densestSplits\": [");
+        sep = "";
+        for (Entry e : densestSplits.sorted()) {
+            out.print(sep + "    {\"range\": " + json(e.label) + ", \"rows\": " + e.weight + "}");
+            sep = ",\n";
+        }
+        out.println("\n  ],");
+        out.println("  \"widestPartitions\": [");
+        sep = "";
+        for (Entry e : widestPartitions.sorted()) {
+            out.print(sep + "    {\"key\": " + json(e.label) + ", \"rows\": " + e.weight + "}");
+            sep = ",\n";
+        }
+        out.println("\n  ]");
+        out.println("}");
+    }
+
+    private static String bucketLabel(int k) {
+        if (0 == k)
+            return "0";
+        return (1L << (k - 1)) + "-" + ((64 == k) ? Long.MAX_VALUE : (1L << k) - 1);
+    }
+
+    private static String csv(String s) {
+        if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) && (s.indexOf('\n') < 0))
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if ((c == '"') || (c == '\\'))
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+
+/**
+ * One (begin, end] token range to count, plus how many times it has
+ * been tried, what it is counted for and, when the ReplicaScheduler is
+ * used, its replicas and the one it is currently sent to.
+ *
+ * Murmur3Partitioner tokens are kept as primitive longs and bound as
+ * bigint.  RandomPartitioner tokens do not fit in a long, so those
+ * splits carry BigIntegers instead and are bound as varint.  No driver
+ * Token objects are created for a split.
+ */
+public class Split implements Comparable<Split> {
+    private final long begin;
+    private final long end;
+    private final BigInteger bigBegin;
+    private final BigInteger bigEnd;
+    private int attempts = 0;
+    private List<Host> replicas = null;
+    private Host host = null;
+    private Object owner = null;
+
+    public Split(long begin, long end) {
+        this.begin = begin;
+        this.end = end;
+        this.bigBegin = null;
+        this.bigEnd = null;
+    }
+
+    public Split(BigInteger begin, BigInteger end) {
+        this.begin = 0;
+        this.end = 0;
+        this.bigBegin = begin;
+        this.bigEnd = end;
+    }
+
+    /**
+     * Parses token strings as written by beginString()/endString().
+     */
+    public static Split parse(String begin, String end, boolean wide) {
+        if (wide)
+            return new Split(new BigInteger(begin), new BigInteger(end));
+        return new Split(Long.parseLong(begin), Long.parseLong(end));
+    }
+
+    public boolean isWide() {
+        return null != bigBegin;
+    }
+
+    public BoundStatement bind(PreparedStatement ps) {
+        BoundStatement bs = ps.bind();
+        if (isWide())
+            return bs.setVarint(0, bigBegin).setVarint(1, bigEnd);
+        return bs.setLong(0, begin).setLong(1, end);
+    }
+
+    /**
+     * Begin token of a Murmur3Partitioner split; 0 for a wide split.
+     */
+    public long getBegin() {
+        return begin;
+    }
+
+    /**
+     * End token of a Murmur3Partitioner split; 0 for a wide split.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Begin token of a wide split; null for a Murmur3Partitioner split.
+     */
+    public BigInteger getBigBegin() {
+        return bigBegin;
+    }
+
+    /**
+     * End token of a wide split; null for a Murmur3Partitioner split.
+     */
+    public BigInteger getBigEnd() {
+        return bigEnd;
+    }
+
+    public String beginString() {
+        return isWide() ? bigBegin.toString() : String.valueOf(begin);
+    }
+
+    public String endString() {
+        return isWide() ? bigEnd.toString() : String.valueOf(end);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int incrementAttempts() {
+        return ++attempts;
+    }
+
+    public List<Host> getReplicas() {
+        return replicas;
+    }
+
+    public void setReplicas(List<Host> replicas) {
+        this.replicas = replicas;
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    public void setHost(Host host) {
+        this.host = host;
+    }
+
+    /**
+     * What the split is counted for, e.g. a sampled split in -approx
+     * mode.  Bisected halves inherit it.
+     */
+    public Object getOwner() {
+        return owner;
+    }
+
+    public void setOwner(Object owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * The same range with no replicas, host, owner or attempts, e.g. to
+     * run it on a session of another cluster.
+     */
+    public Split unrouted() {
+        return isWide() ? new Split(bigBegin, bigEnd) : new Split(begin, end);
+    }
+
+    /**
+     * Number of tokens in the range.
+     */
+    public BigInteger width() {
+        if (isWide())
+            return bigEnd.subtract(bigBegin);
+        return BigInteger.valueOf(end).subtract(BigInteger.valueOf(begin));
+    }
+
+    /**
+     * Splits the range in half.  Returns null if the range is narrower
+     * than twice minWidth.
+     */
+    public Split[] bisect(BigInteger minWidth) {
+        Split lo;
+        Split hi;
+        if (isWide()) {
+            BigInteger w = bigEnd.subtract(bigBegin);
+            if ((w.signum() <= 0) || (w.compareTo(minWidth.shiftLeft(1)) < 0))
+                return null;
+            BigInteger mid = bigBegin.add(w.shiftRight(1));
+            lo = new Split(bigBegin, mid);
+            hi = new Split(mid, bigEnd);
+        } else {
+            if ((end <= begin) || (minWidth.bitLength() > 62))
+                return null;
+            // The width of a non-wrapping range always fits in an unsigned long
+            long w = end - begin;
+            if (Long.compareUnsigned(w, minWidth.longValue() << 1) < 0)
+                return null;
+            long mid = begin + (w >>> 1);
+            lo = new Split(begin, mid);
+            hi = new Split(mid, end);
+        }
+        lo.replicas = replicas;
+        hi.replicas = replicas;
+        lo.owner = owner;
+        hi.owner = owner;
+        return new Split[]{lo, hi};
+    }
+
+    /**
+     * Orders by begin token.
+     */
+    @Override
+    public int compareTo(Split o) {
+        if (isWide())
+            return bigBegin.compareTo(o.bigBegin);
+        return Long.compare(begin, o.begin);
+    }
+
+    /**
+     * The empty range (begin, begin].
+     */
+    public Split beginPoint() {
+        return isWide() ? new Split(bigBegin, bigBegin) : new Split(begin, begin);
+    }
+
+    /**
+     * The empty range (end, end].
+     */
+    public Split endPoint() {
+        return isWide() ? new Split(bigEnd, bigEnd) : new Split(end, end);
+    }
+
+    public boolean beginsBeforeEndOf(Split o) {
+        if (isWide())
+            return 0 > bigBegin.compareTo(o.bigEnd);
+        return begin < o.end;
+    }
+
+    public boolean endsAfter(Split o) {
+        if (isWide())
+            return 0 < bigEnd.compareTo(o.bigEnd);
+        return end > o.end;
+    }
+
+    /**
+     * The split (this.end, o.begin], or null if o begins at or before
+     * this split's end.
+     */
+    public Split gapBefore(Split o) {
+        if (isWide())
+            return (0 < o.bigBegin.compareTo(bigEnd)) ? new Split(bigEnd, o.bigBegin) : null;
+        return (o.begin > end) ? new Split(end, o.begin) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + beginString() + "," + endString() + "]";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics gathered in the same scan as the count: the oldest and
+ * newest WRITETIME() of one column, and the serialized size of the
+ * values read.  Each split collects into a Partial of its own, which is
+ * merged only once the split has succeeded, so a split that fails part
+ * way and is retried or bisected is not counted twice.
+ */
+public class SplitAggregates {
+    private final String writetimeColumn;
+    private final boolean bytes;
+    private final LongAccumulator minWritetime = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxWritetime = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAdder totalBytes = new LongAdder();
+
+    /**
+     * writetimeColumn is null for no writetime statistics.
+     */
+    public SplitAggregates(String writetimeColumn, boolean bytes) {
+        this.writetimeColumn = writetimeColumn;
+        this.bytes = bytes;
+    }
+
+    public String getWritetimeColumn() {
+        return writetimeColumn;
+    }
+
+    public boolean isBytes() {
+        return bytes;
+    }
+
+    public class Partial {
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private long sum = 0;
+
+        public void addWritetime(long micros) {
+            min = Math.min(min, micros);
+            max = Math.max(max, micros);
+        }
+
+        public void addBytes(long n) {
+            sum += n;
+        }
+
+        public void merge() {
+            minWritetime.accumulate(min);
+            maxWritetime.accumulate(max);
+            totalBytes.add(sum);
+        }
+    }
+
+    public Partial newPartial() {
+        return new Partial();
+    }
+
+    /**
+     * The statistics asked for, to follow a count: ", writetime <min>
+     * to <max>" in microseconds since the epoch, "none" if no value had
+     * a writetime, and ", <n> bytes".
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        if (null != writetimeColumn) {
+            long min = minWritetime.get();
+            long max = maxWritetime.get();
+            sb.append(", writetime ").append((min > max) ? "none" : min + " to " + max);
+        }
+        if (bytes)
+            sb.append(", ").append(totalBytes.sum()).append(" bytes");
+        return sb.toString();
+    }
+}
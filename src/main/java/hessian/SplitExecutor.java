@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs the count query for one split.  CqlSplitExecutor sends it to
+ * Cassandra; the benchmarks plug in an in-process fake so the pipeline
+ * can be measured without a cluster.
+ */
+public interface SplitExecutor {
+    /**
+     * Starts counting the split and returns its row count.  Must not
+     * block; failures are reported through the future.
+     */
+    ListenableFuture<Long> execute(Split split);
+}
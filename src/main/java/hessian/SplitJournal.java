@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only record of completed splits, one "begin,end,count" line
+ * per split, so an interrupted count can be resumed.  The pipeline's
+ * callbacks only put entries on a queue; a background thread writes
+ * them and fsyncs every SYNC_ENTRIES entries or SYNC_MILLIS
+ * milliseconds, whichever comes first.
+ */
+public class SplitJournal implements SplitListener {
+    private static final String HEADER = "#cassandra-count ";
+    private static final String QUERY = "#query ";
+    private static final int SYNC_ENTRIES = 1000;
+    private static final long SYNC_MILLIS = 1000;
+
+    private final File file;
+    private final String tableName;
+    private final String query;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private FileOutputStream fos;
+    private BufferedWriter writer;
+    private Thread writerThread;
+    private volatile boolean closing = false;
+    private IOException writeError = null;
+
+    // Splits read back by load(), ordered by begin token, with their counts
+    private final NavigableMap<Split, Long> entries = new TreeMap<>();
+    private final LongAdder resumedCount = new LongAdder();
+    private final LongAdder resumedRanges = new LongAdder();
+    private CountMetrics metrics = null;
+
+    /**
+     * tableName is "keyspace.table" and query what is counted and how
+     * (partitioner, count mode, -where); both are written as the file's
+     * header lines so a journal is never resumed against another table
+     * or with counts of another query.
+     */
+    public SplitJournal(File file, String tableName, String query) {
+        this.file = file;
+        this.tableName = tableName;
+        this.query = query;
+    }
+
+    /**
+     * Reads the completed splits of an earlier run.  Returns false if
+     * the journal is for a different table or query.
+     */
+    public boolean load(boolean wide) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if ((null == line) || !line.equals(HEADER + tableName)) {
+                System.err.println("Journal " + file + " is not for " + tableName);
+                return false;
+            }
+            line = reader.readLine();
+            if ((null == line) || !line.equals(QUERY + query)) {
+                System.err.println("Journal " + file + " was written by a different query: "
+                        + ((null == line) ? "none" : line.substring(Math.min(line.length(), QUERY.length())))
+                        + ", not " + query);
+                return false;
+            }
+            while (null != (line = reader.readLine())) {
+                String[] fields = line.split(",");
+                // A crash can leave a torn last line; that split is simply redone
+                if (3 != fields.length)
+                    continue;
+                try {
+                    entries.put(Split.parse(fields[0], fields[1], wide), Long.parseLong(fields[2]));
+                } catch (RuntimeException e) {
+                    continue;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes through the parts of the planned splits that the journal
+     * does not cover.  A journal entry is used only if it lies inside a
+     * single planned split, as happens when the plan is rebuilt with
+     * the same options, or when a split was bisected; its count then
+     * goes into getResumedCount().  Splits are filtered as they are
+     * pulled, so the plan is never materialised.
+     */
+    public Iterator<Split> remaining(final Iterator<Split> planned, CountMetrics metrics) {
+        this.metrics = metrics;
+        return new Iterator<Split>() {
+            private final ArrayDeque<Split> todo = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (todo.isEmpty() && planned.hasNext())
+                    uncovered(planned.next(), todo);
+                return !todo.isEmpty();
+            }
+
+            @Override
+            public Split next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return todo.poll();
+            }
+        };
+    }
+
+    private void uncovered(Split split, ArrayDeque<Split> todo) {
+        int before = todo.size();
+        Split cursor = split.beginPoint();
+        for (Map.Entry<Split, Long> e : entries.subMap(split, true, split.endPoint(), false).entrySet()) {
+            Split done = e.getKey();
+            if (done.endsAfter(split))
+                break;
+            if (done.beginsBeforeEndOf(cursor))
+                continue;
+            addGap(cursor.gapBefore(done), split, todo);
+            resumedCount.add(e.getValue());
+            resumedRanges.increment();
+            cursor = done;
+        }
+        addGap(cursor.gapBefore(split.endPoint()), split, todo);
+        if (null != metrics)
+            metrics.recordResumed(todo.size() - before);
+    }
+
+    private static void addGap(Split gap, Split split, ArrayDeque<Split> todo) {
+        if (null == gap)
+            return;
+        gap.setReplicas(split.getReplicas());
+        todo.add(gap);
+    }
+
+    public long getResumedCount() {
+        return resumedCount.sum();
+    }
+
+    public long getResumedRanges() {
+        return resumedRanges.sum();
+    }
+
+    /**
+     * Opens the journal for appending and starts the writer thread.
+     */
+    public void open() throws IOException {
+        boolean fresh = !file.exists() || (0 == file.length());
+        fos = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+        if (fresh) {
+            writer.write(HEADER + tableName);
+            writer.newLine();
+            writer.write(QUERY + query);
+            writer.newLine();
+            sync();
+        }
+        writerThread = new Thread(this::writeLoop, "split-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void onComplete(Split split, long count) {
+        queue.add(split.beginString() + "," + split.endString() + "," + count);
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        int unsynced = 0;
+        long lastSync = System.nanoTime();
+        try {
+            while (!closing || !queue.isEmpty()) {
+                String line = queue.poll(SYNC_MILLIS, TimeUnit.MILLISECONDS);
+                if (null != line) {
+                    batch.add(line);
+                    queue.drainTo(batch);
+                    for (String l : batch) {
+                        writer.write(l);
+                        writer.newLine();
+                    }
+                    unsynced += batch.size();
+                    batch.clear();
+                }
+                if ((0 < unsynced) && ((unsynced >= SYNC_ENTRIES)
+                        || (System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(SYNC_MILLIS)))) {
+                    sync();
+                    unsynced = 0;
+                    lastSync = System.nanoTime();
+                }
+            }
+            sync();
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        fos.getChannel().force(false);
+    }
+
+    /**
+     * Writes and fsyncs everything queued so far, then closes the file.
+     * Safe to call more than once, e.g. from a shutdown hook.
+     */
+    public synchronized void close() throws IOException {
+        if (null == writerThread)
+            return;
+        closing = true;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        writer.close();
+        if (null != writeError)
+            throw writeError;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Keeps as many split queries in flight as the ConcurrencyController
+ * allows.  Each completed future releases its slot from its callback,
+ * so the next split is issued as soon as any query returns instead of
+ * waiting for a whole batch.  Partial counts are summed into a
+ * LongAdder, so callbacks on the driver's I/O threads never contend on
+ * a lock.
+ *
+ * Failed splits are put back on the work queue after an exponential
+ * backoff.  A split that times out is bisected instead, down to
+ * minSplitWidth tokens, so only the troublesome range gets smaller.
+ */
+public class SplitPipeline {
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final SplitExecutor executor;
+    private final ConcurrencyController limiter;
+    private final CountMetrics metrics;
+    private final int debug;
+    private final LongAdder count = new LongAdder();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<SplitListener> listeners = new ArrayList<>();
+    private ReplicaScheduler scheduler = null;
+
+    // Splits waiting to be (re)issued, and splits not yet finished
+    private final BlockingQueue<Split> retryQueue = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private ScheduledExecutorService backoffTimer;
+
+    private int maxRetries = 5;
+    private long retryBackoff = 100;
+    private BigInteger minSplitWidth = BigInteger.ONE;
+
+    // Occupancy statistics, only touched by the submitting thread
+    private long submitted = 0;
+    private long slotsFull = 0;
+    private long inFlightSum = 0;
+    private long startNanos = 0;
+    private long elapsedNanos = 0;
+
+    public SplitPipeline(SplitExecutor executor, ConcurrencyController limiter, CountMetrics metrics, int debug) {
+        this.executor = executor;
+        this.limiter = limiter;
+        this.metrics = metrics;
+        this.debug = debug;
+    }
+
+    public void setRetryPolicy(int maxRetries, long retryBackoff, BigInteger minSplitWidth) {
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.minSplitWidth = minSplitWidth;
+    }
+
+    /**
+     * Pins every split, including retries, to a replica chosen by the
+     * scheduler.
+     */
+    public void setScheduler(ReplicaScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void addListener(SplitListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SplitListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Runs every split through the window and waits for the last one
+     * to finish, including retries and bisected halves.  Returns false
+     * if a split failed for good; the failure is available from
+     * getFailure().  No new splits are issued after that.
+     */
+    public boolean run(Iterator<Split> splits) {
+        startNanos = System.nanoTime();
+        backoffTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "split-backoff");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            while (null == failure.get()) {
+                Split split = retryQueue.poll();
+                if (null == split) {
+                    if (splits.hasNext()) {
+                        split = splits.next();
+                        pending.incrementAndGet();
+                    } else if (0 == pending.get()) {
+                        break;
+                    } else {
+                        try {
+                            split = retryQueue.poll(100, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            failure.compareAndSet(null, e);
+                        }
+                        if (null == split)
+                            continue;
+                    }
+                }
+                acquireSlot();
+                if (null != failure.get()) {
+                    limiter.release();
+                    break;
+                }
+                if (null != scheduler)
+                    scheduler.route(split);
+                submit(split);
+            }
+
+            // Drain: once every slot is back, nothing is in flight
+            Debug.print(debug, "Waiting for " + limiter.getInFlight() + " left futures", true, 2);
+            limiter.awaitIdle();
+        } finally {
+            backoffTimer.shutdownNow();
+        }
+        elapsedNanos = System.nanoTime() - startNanos;
+        return null == failure.get();
+    }
+
+    private void submit(final Split split) {
+        if (Debug.enabled(debug, 2))
+            Debug.print(debug, "Executing: " + split.beginString() + "  " + split.endString()
+                    + (null != split.getHost() ? " on " + split.getHost() : "") + "  (in-flight " + limiter.getInFlight()
+                    + "/" + limiter.getLimit() + ", latency " + limiter.getLatencyMillis() + " ms)", true, 2);
+        final long startNanos = System.nanoTime();
+        ListenableFuture<Long> future;
+        try {
+            future = executor.execute(split);
+        } catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(future, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long c) {
+                try {
+                    long latency = System.nanoTime() - startNanos;
+                    limiter.onSuccess(startNanos, latency);
+                    count.add(c);
+                    metrics.recordSuccess(latency, c);
+                    for (SplitListener l : listeners)
+                        l.onComplete(split, c);
+                    pending.decrementAndGet();
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if (null != scheduler)
+                        scheduler.release(split);
+                    limiter.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    if (isOverload(t))
+                        limiter.onOverload(startNanos);
+                    handleFailure(split, t);
+                } finally {
+                    if (null != scheduler)
+                        scheduler.release(split);
+                    limiter.release();
+                }
+            }
+        });
+    }
+
+    private static boolean isOverload(Throwable t) {
+        return (t instanceof ReadTimeoutException) || (t instanceof OperationTimedOutException)
+                || (t instanceof OverloadedException) || (t instanceof NoHostAvailableException);
+    }
+
+    private void handleFailure(Split split, Throwable t) {
+        if (t instanceof QueryValidationException) {
+            failure.compareAndSet(null, t);
+            return;
+        }
+        if ((t instanceof ReadTimeoutException) || (t instanceof OperationTimedOutException)) {
+            metrics.recordTimeout();
+            Split[] halves = split.bisect(minSplitWidth);
+            if (null != halves) {
+                Debug.print(debug, "Bisecting " + split + " after " + t.getClass().getSimpleName(), true, 1);
+                metrics.recordBisection();
+                pending.incrementAndGet();
+                retryQueue.add(halves[0]);
+                retryQueue.add(halves[1]);
+                return;
+            }
+        }
+        int attempt = split.incrementAttempts();
+        if (attempt > maxRetries) {
+            failure.compareAndSet(null, t);
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, retryBackoff << Math.min(attempt - 1, 20));
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        Debug.print(debug, "Retrying " + split + " in " + backoff + " ms after " + t.getClass().getSimpleName()
+                + " (attempt " + attempt + "/" + maxRetries + ")", true, 1);
+        metrics.recordRetry();
+        backoffTimer.schedule(() -> retryQueue.add(split), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void acquireSlot() {
+        inFlightSum += limiter.getInFlight();
+        submitted++;
+        if (!limiter.tryAcquire()) {
+            slotsFull++;
+            limiter.acquire();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    /**
+     * Summary of how busy the window was.  A high full percentage means
+     * the cluster, not the client, was the bottleneck.
+     */
+    public String stats() {
+        double secs = elapsedNanos / 1e9;
+        StringBuilder sb = new StringBuilder("Pipeline: ");
+        sb.append(submitted).append(" splits in ").append(String.format("%.3f", secs)).append(" s");
+        if (secs > 0)
+            sb.append(" (").append(String.format("%.1f", submitted / secs)).append(" splits/s)");
+        if (submitted > 0) {
+            sb.append("; slots full on ").append(slotsFull).append(" of ").append(submitted);
+            sb.append(" submissions (").append(String.format("%.1f", 100.0 * slotsFull / submitted)).append("%)");
+            sb.append("; mean in-flight ").append(String.format("%.1f", (double) inFlightSum / submitted));
+            sb.append("; final limit ").append(limiter.getLimit()).append("/").append(limiter.getMaxLimit());
+            sb.append(", latency ").append(limiter.getLatencyMillis()).append(" ms");
+        }
+        sb.append("; retries ").append(metrics.getRetries()).append(", bisections ").append(metrics.getBisections());
+        if (0 < metrics.getHedges())
+            sb.append(", hedges ").append(metrics.getHedges());
+        return sb.toString();
+    }
+}
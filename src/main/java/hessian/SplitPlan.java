@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The splits to count, stored as a list of segments, each a (start, end]
+ * token range to be cut into n even splits.  Splits are generated on
+ * demand by split(), so memory grows with the number of segments (token
+ * ranges or size_estimates rows), not with -numSplits.
+ *
+ * Murmur3Partitioner segments are stored in primitive long arrays.
+ * RandomPartitioner tokens go up to 2^127, so a "wide" plan stores
+ * BigIntegers instead.
+ */
+public class SplitPlan implements Iterable<Split> {
+    public static final long MIN_TOKEN = Long.MIN_VALUE;
+    public static final long MAX_TOKEN = Long.MAX_VALUE;
+    public static final BigInteger MIN_WIDE_TOKEN = BigInteger.ONE.negate();
+    public static final BigInteger MAX_WIDE_TOKEN = BigInteger.ONE.shiftLeft(127);
+
+    private final boolean wide;
+    private int numSegments = 0;
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private BigInteger[] bigStarts;
+    private BigInteger[] bigEnds;
+    private long[] counts = new long[16];
+    private long totalSplits = 0;
+
+    public SplitPlan(boolean wide) {
+        this.wide = wide;
+        if (wide) {
+            bigStarts = new BigInteger[16];
+            bigEnds = new BigInteger[16];
+        }
+    }
+
+    /**
+     * Returns true for partitioners whose tokens need a wide plan,
+     * false for Murmur3Partitioner, and null if the partitioner is not
+     * supported.
+     */
+    public static Boolean isWide(String partitioner) {
+        if (partitioner.endsWith("Murmur3Partitioner"))
+            return false;
+        if (partitioner.endsWith("RandomPartitioner"))
+            return true;
+        return null;
+    }
+
+    public boolean isWide() {
+        return wide;
+    }
+
+    public BigInteger getMinToken() {
+        return wide ? MIN_WIDE_TOKEN : BigInteger.valueOf(MIN_TOKEN);
+    }
+
+    public BigInteger getMaxToken() {
+        return wide ? MAX_WIDE_TOKEN : BigInteger.valueOf(MAX_TOKEN);
+    }
+
+    /**
+     * True if token is on this plan's ring.  add(BigInteger, ...) on a
+     * Murmur3 plan truncates anything outside the long range.
+     */
+    public boolean isToken(BigInteger token) {
+        return (0 <= token.compareTo(getMinToken())) && (0 >= token.compareTo(getMaxToken()));
+    }
+
+    public int getNumSegments() {
+        return numSegments;
+    }
+
+    public long getTotalSplits() {
+        return totalSplits;
+    }
+
+    public long getNumSplits(int segment) {
+        return counts[segment];
+    }
+
+    /**
+     * Adds (start, end] cut into n splits.  A range that wraps around
+     * the ring (start >= end) is added as two segments.
+     */
+    public void add(long start, long end, long n) {
+        if (wide) {
+            add(BigInteger.valueOf(start), BigInteger.valueOf(end), n);
+            return;
+        }
+        if (start >= end) {
+            long half = Math.max(1, n / 2);
+            if (start != MAX_TOKEN)
+                add(start, MAX_TOKEN, Math.max(1, n - half));
+            if (end != MIN_TOKEN)
+                add(MIN_TOKEN, end, half);
+            return;
+        }
+        long width = end - start;
+        if (Long.compareUnsigned(n, width) > 0)
+            n = width;
+        grow();
+        starts[numSegments] = start;
+        ends[numSegments] = end;
+        counts[numSegments] = Math.max(1, n);
+        totalSplits += counts[numSegments];
+        numSegments++;
+    }
+
+    public void add(BigInteger start, BigInteger end, long n) {
+        if (!wide) {
+            add(start.longValue(), end.longValue(), n);
+            return;
+        }
+        if (0 <= start.compareTo(end)) {
+            long half = Math.max(1, n / 2);
+            if (!start.equals(MAX_WIDE_TOKEN))
+                add(start, MAX_WIDE_TOKEN, Math.max(1, n - half));
+            if (!end.equals(MIN_WIDE_TOKEN))
+                add(MIN_WIDE_TOKEN, end, half);
+            return;
+        }
+        BigInteger width = end.subtract(start);
+        if (BigInteger.valueOf(n).compareTo(width) > 0)
+            n = width.longValue();
+        grow();
+        bigStarts[numSegments] = start;
+        bigEnds[numSegments] = end;
+        counts[numSegments] = Math.max(1, n);
+        totalSplits += counts[numSegments];
+        numSegments++;
+    }
+
+    private void grow() {
+        if (numSegments < counts.length)
+            return;
+        int len = counts.length * 2;
+        counts = Arrays.copyOf(counts, len);
+        if (wide) {
+            bigStarts = Arrays.copyOf(bigStarts, len);
+            bigEnds = Arrays.copyOf(bigEnds, len);
+        } else {
+            starts = Arrays.copyOf(starts, len);
+            ends = Arrays.copyOf(ends, len);
+        }
+    }
+
+    /**
+     * The whole segment as one split.
+     */
+    public Split segment(int segment) {
+        if (wide)
+            return new Split(bigStarts[segment], bigEnds[segment]);
+        return new Split(starts[segment], ends[segment]);
+    }
+
+    /**
+     * The i-th of the segment's n splits.  The first (width % n) splits
+     * are one token wider than the rest, so the splits tile the
+     * segment exactly.
+     */
+    public Split split(int segment, long i) {
+        long n = counts[segment];
+        if (wide) {
+            BigInteger start = bigStarts[segment];
+            BigInteger width = bigEnds[segment].subtract(start);
+            BigInteger bn = BigInteger.valueOf(n);
+            BigInteger b = start.add(width.multiply(BigInteger.valueOf(i)).divide(bn));
+            BigInteger e = (i == n - 1) ? bigEnds[segment]
+                    : start.add(width.multiply(BigInteger.valueOf(i + 1)).divide(bn));
+            return new Split(b, e);
+        }
+        long start = starts[segment];
+        // Unsigned: the full ring is 2^64 - 1 tokens wide
+        long width = ends[segment] - start;
+        long q = Long.divideUnsigned(width, n);
+        long r = Long.remainderUnsigned(width, n);
+        long b = start + i * q + Math.min(i, r);
+        long e = (i == n - 1) ? ends[segment] : start + (i + 1) * q + Math.min(i + 1, r);
+        return new Split(b, e);
+    }
+
+    /**
+     * This plan with every segment that spans a ring token cut there,
+     * so each segment lies in one token range and so has one replica
+     * set.  A cut segment's splits are shared among its pieces by
+     * width, at least one each.  tokens must be sorted.  Returns this
+     * plan if no segment spans a token.
+     */
+    public SplitPlan cutAt(BigInteger[] tokens) {
+        SplitPlan cut = null;
+        for (int seg = 0; seg < numSegments; seg++) {
+            Split s = segment(seg);
+            BigInteger begin = new BigInteger(s.beginString());
+            BigInteger end = new BigInteger(s.endString());
+            int i = Arrays.binarySearch(tokens, begin);
+            i = (i < 0) ? -i - 1 : i + 1;
+            boolean spans = (i < tokens.length) && (0 > tokens[i].compareTo(end));
+            if ((null == cut) && !spans)
+                continue;
+            if (null == cut) {
+                cut = new SplitPlan(wide);
+                for (int k = 0; k < seg; k++)
+                    cut.addSegment(this, k);
+            }
+            if (!spans) {
+                cut.addSegment(this, seg);
+                continue;
+            }
+            double width = end.subtract(begin).doubleValue();
+            BigInteger from = begin;
+            for (; (i < tokens.length) && (0 > tokens[i].compareTo(end)); i++) {
+                cut.add(from, tokens[i], Math.max(1, Math.round(counts[seg] * tokens[i].subtract(from).doubleValue() / width)));
+                from = tokens[i];
+            }
+            cut.add(from, end, Math.max(1, Math.round(counts[seg] * end.subtract(from).doubleValue() / width)));
+        }
+        return (null == cut) ? this : cut;
+    }
+
+    private void addSegment(SplitPlan from, int seg) {
+        if (wide)
+            add(from.bigStarts[seg], from.bigEnds[seg], from.counts[seg]);
+        else
+            add(from.starts[seg], from.ends[seg], from.counts[seg]);
+    }
+
+    /**
+     * Splits from (inclusive) to to (exclusive), counted in plan order,
+     * as a plan of their own.  A segment cut part way is narrowed to the
+     * splits kept, so the slices of one plan tile it exactly.
+     */
+    public SplitPlan slice(long from, long to) {
+        SplitPlan sub = new SplitPlan(wide);
+        long offset = 0;
+        for (int seg = 0; seg < numSegments; seg++) {
+            long a = Math.max(0, from - offset);
+            long b = Math.min(counts[seg], to - offset);
+            offset += counts[seg];
+            if (a >= b)
+                continue;
+            Split first = split(seg, a);
+            Split last = split(seg, b - 1);
+            if (wide)
+                sub.add(first.getBigBegin(), last.getBigEnd(), b - a);
+            else
+                sub.add(first.getBegin(), last.getEnd(), b - a);
+        }
+        return sub;
+    }
+
+    /**
+     * All splits, segment by segment.
+     */
+    @Override
+    public Iterator<Split> iterator() {
+        return new Iterator<Split>() {
+            private int segment = 0;
+            private long i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return segment < numSegments;
+            }
+
+            @Override
+            public Split next() {
+                if (segment >= numSegments)
+                    throw new NoSuchElementException();
+                Split s = split(segment, i);
+                if (++i >= counts[segment]) {
+                    segment++;
+                    i = 0;
+                }
+                return s;
+            }
+        };
+    }
+}
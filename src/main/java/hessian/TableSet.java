@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Several tables counted through one pipeline.  Their splits are
+ * interleaved, one table after another, and tagged with their table
+ * as the split owner; execute() hands each split to its table's
+ * executor, and onComplete() adds its count to that table's total.
+ */
+public class TableSet implements SplitExecutor, SplitListener, Iterable<Split> {
+    private final List<Table> tables = new ArrayList<>();
+
+    public static class Table {
+        private final String name;
+        private final SplitPlan plan;
+        private final Iterator<Split> splits;
+        private final SplitExecutor executor;
+        private final LongAdder partitions;
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * partitions, if not null, is where the executor adds the
+         * table's partition count.
+         */
+        public Table(String name, SplitPlan plan, Iterator<Split> splits, SplitExecutor executor, LongAdder partitions) {
+            this.name = name;
+            this.plan = plan;
+            this.splits = splits;
+            this.executor = executor;
+            this.partitions = partitions;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public LongAdder getPartitions() {
+            return partitions;
+        }
+    }
+
+    public void add(Table table) {
+        tables.add(table);
+    }
+
+    public List<Table> getTables() {
+        return tables;
+    }
+
+    public long getTotalSplits() {
+        long total = 0;
+        for (Table t : tables)
+            total += t.plan.getTotalSplits();
+        return total;
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(Split split) {
+        return ((Table) split.getOwner()).executor.execute(split);
+    }
+
+    @Override
+    public void onComplete(Split split, long count) {
+        ((Table) split.getOwner()).count.add(count);
+    }
+
+    /**
+     * Takes one split from each table in turn, skipping tables that
+     * have run out, so every table is under way from the start.
+     */
+    @Override
+    public Iterator<Split> iterator() {
+        return new Iterator<Split>() {
+            private int cursor = 0;
+
+            @Override
+            public boolean hasNext() {
+                for (int k = 0; k < tables.size(); k++)
+                    if (tables.get((cursor + k) % tables.size()).splits.hasNext())
+                        return true;
+                return false;
+            }
+
+            @Override
+            public Split next() {
+                for (int k = 0; k < tables.size(); k++) {
+                    Table t = tables.get((cursor + k) % tables.size());
+                    if (t.splits.hasNext()) {
+                        cursor = (cursor + k + 1) % tables.size();
+                        Split s = t.splits.next();
+                        s.setOwner(t);
+                        return s;
+                    }
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+}
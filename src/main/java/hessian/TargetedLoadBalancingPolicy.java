@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Sends a RoutedStatement to its host first, then to its other live
+ * replicas, so a speculative execution or retry of a split still reads
+ * locally, then falls back to the child policy's plan.  Any other
+ * statement goes to the child policy unchanged.
+ */
+public class TargetedLoadBalancingPolicy implements ChainableLoadBalancingPolicy {
+    private final LoadBalancingPolicy childPolicy;
+
+    public TargetedLoadBalancingPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        final Iterator<Host> child = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if (!(statement instanceof RoutedStatement))
+            return child;
+        RoutedStatement routed = (RoutedStatement) statement;
+        final List<Host> first = new ArrayList<>();
+        if (usable(routed.getHost()))
+            first.add(routed.getHost());
+        if (first.isEmpty())
+            return child;
+        if (null != routed.getReplicas())
+            for (Host h : routed.getReplicas())
+                if (usable(h) && !first.contains(h))
+                    first.add(h);
+        return new AbstractIterator<Host>() {
+            private int next = 0;
+
+            @Override
+            protected Host computeNext() {
+                if (next < first.size())
+                    return first.get(next++);
+                while (child.hasNext()) {
+                    Host h = child.next();
+                    if (!first.contains(h))
+                        return h;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private boolean usable(Host h) {
+        return (null != h) && h.isUp() && (HostDistance.IGNORED != childPolicy.distance(h));
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+}
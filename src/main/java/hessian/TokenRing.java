@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+
+/**
+ * The token ring and one keyspace's replication, read straight from
+ * system.local, system.peers and the keyspace's schema row, for a
+ * cluster built with driver metadata disabled.  Only what a count
+ * needs is read, however many keyspaces and vnodes the cluster has.
+ *
+ * Replicas are placed like SimpleStrategy and NetworkTopologyStrategy
+ * do, walking the ring from a token's owner, but without rack
+ * awareness; a host placed wrongly only costs a coordinator hop.
+ */
+public class TokenRing {
+    private static final Pattern JSON_OPTION = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"(\\d+)\"");
+
+    private final String partitioner;
+    private final BigInteger[] tokens;
+    private final Host[] owners;
+    // Replicas per data center, or per "" for SimpleStrategy; empty for owner only
+    private final Map<String, Integer> replication;
+    private final Map<Integer, Set<Host>> replicaCache = new ConcurrentHashMap<>();
+
+    private TokenRing(String partitioner, TreeMap<BigInteger, Host> ring, Map<String, Integer> replication) {
+        this.partitioner = partitioner;
+        this.tokens = ring.keySet().toArray(new BigInteger[0]);
+        this.owners = ring.values().toArray(new Host[0]);
+        this.replication = replication;
+    }
+
+    /**
+     * Reads the ring from one node, so system.local and system.peers
+     * describe the same view, and the replication of keyspace.  Throws
+     * IllegalArgumentException if the keyspace does not exist.
+     */
+    public static TokenRing read(Session session, Collection<Host> hosts, String keyspace) {
+        TreeMap<BigInteger, Host> ring = new TreeMap<>();
+        ResultSet local = session.execute("SELECT partitioner, tokens FROM system.local WHERE key = 'local'");
+        Host node = local.getExecutionInfo().getQueriedHost();
+        Row lr = local.one();
+        String partitioner = lr.getString("partitioner");
+        for (String t : lr.getSet("tokens", String.class))
+            ring.put(new BigInteger(t), node);
+        ResultSet peers = session.execute(new RoutedStatement(
+                new SimpleStatement("SELECT peer, rpc_address, tokens FROM system.peers"), node, null));
+        for (Row pr : peers) {
+            Host h = find(hosts, pr.getInet("peer"), pr.getInet("rpc_address"));
+            for (String t : pr.getSet("tokens", String.class))
+                ring.put(new BigInteger(t), h);
+        }
+        if (ring.isEmpty())
+            throw new IllegalStateException("No tokens in system.local or system.peers");
+        return new TokenRing(partitioner, ring, readReplication(session, keyspace));
+    }
+
+    // A host may be known by its rpc_address, or only by its broadcast
+    // address if rpc_address is the wildcard
+    private static Host find(Collection<Host> hosts, InetAddress peer, InetAddress rpc) {
+        for (Host h : hosts)
+            if (h.getAddress().equals(rpc))
+                return h;
+        for (Host h : hosts)
+            if (h.getAddress().equals(peer) || peer.equals(h.getBroadcastAddress()))
+                return h;
+        return null;
+    }
+
+    private static Map<String, Integer> readReplication(Session session, String keyspace) {
+        String strategy;
+        Map<String, String> options = new HashMap<>();
+        try {
+            Row r = session.execute("SELECT replication FROM system_schema.keyspaces WHERE keyspace_name = ?", keyspace).one();
+            if (null == r)
+                throw new IllegalArgumentException("Keyspace " + keyspace + " does not exist");
+            options.putAll(r.getMap("replication", String.class, String.class));
+            strategy = options.remove("class");
+        } catch (InvalidQueryException e) {
+            // Before Cassandra 3.0
+            Row r = session.execute("SELECT strategy_class, strategy_options FROM system.schema_keyspaces WHERE keyspace_name = ?", keyspace).one();
+            if (null == r)
+                throw new IllegalArgumentException("Keyspace " + keyspace + " does not exist");
+            strategy = r.getString("strategy_class");
+            Matcher m = JSON_OPTION.matcher(r.getString("strategy_options"));
+            while (m.find())
+                options.put(m.group(1), m.group(2));
+        }
+        Map<String, Integer> replication = new HashMap<>();
+        if ((null != strategy) && strategy.endsWith("SimpleStrategy")) {
+            replication.put("", Integer.parseInt(options.get("replication_factor")));
+        } else if ((null != strategy) && strategy.endsWith("NetworkTopologyStrategy")) {
+            for (Map.Entry<String, String> e : options.entrySet())
+                replication.put(e.getKey(), Integer.parseInt(e.getValue()));
+        }
+        return replication;
+    }
+
+    public String getPartitioner() {
+        return partitioner;
+    }
+
+    /**
+     * The (start, end] ranges between consecutive tokens; the last one
+     * wraps around the ring.
+     */
+    public List<BigInteger[]> getRanges() {
+        List<BigInteger[]> ranges = new ArrayList<>();
+        for (int i = 0; i < tokens.length; i++)
+            ranges.add(new BigInteger[]{tokens[(0 == i) ? tokens.length - 1 : i - 1], tokens[i]});
+        return ranges;
+    }
+
+    /**
+     * The replicas of the split's range: those of its end token, joined
+     * by those of every other range it spans.  Plans cut at the ring's
+     * tokens have one range per split.
+     */
+    public Set<Host> replicasOf(Split s) {
+        int last = Arrays.binarySearch(tokens, new BigInteger(s.endString()));
+        if (last < 0)
+            last = -last - 1;
+        int first = Arrays.binarySearch(tokens, new BigInteger(s.beginString()));
+        first = (first < 0) ? -first - 1 : first + 1;
+        Set<Host> replicas = replicaCache.computeIfAbsent(last % tokens.length, this::placeReplicas);
+        if (first >= last)
+            return replicas;
+        replicas = new LinkedHashSet<>(replicas);
+        for (int i = first; (i < last) && (i < first + tokens.length); i++)
+            replicas.addAll(replicaCache.computeIfAbsent(i % tokens.length, this::placeReplicas));
+        return replicas;
+    }
+
+    private Set<Host> placeReplicas(int first) {
+        Set<Host> replicas = new LinkedHashSet<>();
+        Map<String, Integer> placed = new HashMap<>();
+        int wanted = 0;
+        for (int rf : replication.values())
+            wanted += rf;
+        for (int k = 0; k < tokens.length; k++) {
+            Host h = owners[(first + k) % tokens.length];
+            if ((null == h) || replicas.contains(h))
+                continue;
+            if (replication.isEmpty()) {
+                replicas.add(h);
+                break;
+            }
+            String dc = replication.containsKey("") ? "" : h.getDatacenter();
+            int rf = replication.containsKey(dc) ? replication.get(dc) : 0;
+            int n = placed.containsKey(dc) ? placed.get(dc) : 0;
+            if (n >= rf)
+                continue;
+            replicas.add(h);
+            placed.put(dc, n + 1);
+            if (--wanted <= 0)
+                break;
+        }
+        return replicas;
+    }
+}
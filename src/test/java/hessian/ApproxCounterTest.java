@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ApproxCounterTest {
+    private static final long TOTAL_ROWS = 1000000000L;
+
+    private static ApproxCounter sample(int numSplits, int initialSample, boolean estimates) {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, numSplits);
+        FakeSplitExecutor executor = new FakeSplitExecutor(TOTAL_ROWS, "constant", 0, 0, 0, 1);
+        ConcurrencyController limiter = new ConcurrencyController(50, 0, 0);
+        CountMetrics metrics = new CountMetrics("test", "fake", 0, limiter);
+        SplitPipeline pipeline = new SplitPipeline(executor, limiter, metrics, 0);
+        ApproxCounter approx = new ApproxCounter(plan, pipeline, metrics, 10, initialSample, 0, 0, 0.95, 0);
+        if (estimates) {
+            // Dense in (0, 2^62], and one range wrapping around the ring
+            approx.addSizeEstimate(BigInteger.ZERO, BigInteger.ONE.shiftLeft(62), 9000);
+            approx.addSizeEstimate(BigInteger.ONE.shiftLeft(62).add(BigInteger.ONE.shiftLeft(61)),
+                    BigInteger.ONE.shiftLeft(62).negate(), 1000);
+        }
+        try {
+            assertTrue("sample failed: " + pipeline.getFailure(), approx.run());
+        } finally {
+            executor.shutdown();
+        }
+        return approx;
+    }
+
+    @Test
+    public void samplingEverySplitCountsExactly() {
+        ApproxCounter approx = sample(1000, 1000, false);
+        assertEquals(1000, approx.getSampled());
+        assertEquals(TOTAL_ROWS, approx.getEstimate(), 1e-6 * TOTAL_ROWS);
+        assertEquals(0, approx.getHalfWidth(), 1e-6 * TOTAL_ROWS);
+    }
+
+    @Test
+    public void samplingEverySplitCountsExactlyWithSizeEstimates() {
+        ApproxCounter approx = sample(1000, 1000, true);
+        assertEquals(1000, approx.getSampled());
+        assertEquals(TOTAL_ROWS, approx.getEstimate(), 1e-6 * TOTAL_ROWS);
+    }
+
+    @Test
+    public void oneRoundSamplesWhatWasAskedFor() {
+        ApproxCounter approx = sample(10000, 500, true);
+        assertEquals(500, approx.getSampled());
+        assertEquals(TOTAL_ROWS, approx.getEstimate(), 0.01 * TOTAL_ROWS);
+    }
+}
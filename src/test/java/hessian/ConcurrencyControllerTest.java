@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyControllerTest {
+    @Test
+    public void growsAboutOnePerRoundTrip() {
+        ConcurrencyController limiter = new ConcurrencyController(100, 10, 0);
+        assertEquals(25, limiter.getLimit());
+        // A round trip at limit 25 is 25 successes, each adding 1/limit
+        for (int i = 0; i < 26; i++)
+            limiter.onSuccess(System.nanoTime(), 1000);
+        assertEquals(26, limiter.getLimit());
+    }
+
+    @Test
+    public void neverExceedsTheMaximum() {
+        ConcurrencyController limiter = new ConcurrencyController(10, 10, 0);
+        for (int i = 0; i < 1000; i++)
+            limiter.onSuccess(System.nanoTime(), 1000);
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void halvesOncePerRoundTripOnOverload() {
+        ConcurrencyController limiter = new ConcurrencyController(100, 0, 0);
+        long sentBefore = System.nanoTime();
+        long sentAfter = sentBefore + 1;
+        // Several queries sent at the old limit report the same overload
+        limiter.onOverload(sentAfter);
+        limiter.onOverload(sentAfter);
+        limiter.onOverload(sentBefore);
+        assertEquals(50, limiter.getLimit());
+        limiter.onOverload(System.nanoTime());
+        assertEquals(25, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksOnSlowSplitsButNotBelowOne() {
+        ConcurrencyController limiter = new ConcurrencyController(4, 10, 0);
+        for (int i = 0; i < 50; i++)
+            limiter.onSuccess(System.nanoTime(), 1000000000L);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void concurrentSuccessesAreAllCounted() throws InterruptedException {
+        final ConcurrencyController limiter = new ConcurrencyController(1000000, 10, 0);
+        final int perThread = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perThread; i++)
+                    limiter.onSuccess(System.nanoTime(), 1000);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        // n additions of 1/limit from L0 end near sqrt(L0^2 + 2n)
+        double expected = Math.sqrt(250000.0 * 250000.0 + 2.0 * 4 * perThread);
+        assertTrue(limiter.getLimit() + " vs " + expected, Math.abs(limiter.getLimit() - expected) <= 1);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.util.concurrent.Futures;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CostProfileTest {
+    private static final String TABLE = "ks.t";
+    private static final String QUERY = "partitioner=Murmur3Partitioner where=null";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // A profile of TABLE with "begin end micros" ranges
+    private CostProfile profile(long[]... ranges) throws IOException {
+        File file = folder.newFile();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("#cassandra-count-profile");
+            out.println("mode " + TABLE + " " + QUERY);
+            for (long[] r : ranges)
+                out.println(TABLE + " " + r[0] + " " + r[1] + " 0 " + r[2]);
+        }
+        CostProfile profile = new CostProfile(file, 0);
+        profile.load();
+        return profile;
+    }
+
+    private static List<String> segments(SplitPlan plan) {
+        List<String> segments = new ArrayList<>();
+        for (int seg = 0; seg < plan.getNumSegments(); seg++)
+            segments.add(plan.segment(seg) + "x" + plan.getNumSplits(seg));
+        return segments;
+    }
+
+    private static SplitPlan base(long... bounds) {
+        SplitPlan plan = new SplitPlan(false);
+        for (int i = 0; i + 1 < bounds.length; i++)
+            plan.add(bounds[i], bounds[i + 1], 1);
+        return plan;
+    }
+
+    @Test
+    public void cheapRangesMergeUpToTheTargetCost() throws IOException {
+        CostProfile profile = profile(new long[]{0, 10, 2}, new long[]{10, 20, 2}, new long[]{20, 30, 2}, new long[]{30, 40, 34});
+        SplitPlan plan = profile.plan(TABLE, QUERY, base(0, 40), 4);
+        assertEquals("[(0,30]x1, (30,40]x3]", segments(plan).toString());
+    }
+
+    @Test
+    public void mergesNeverCrossASegment() throws IOException {
+        CostProfile profile = profile(new long[]{0, 10, 2}, new long[]{10, 20, 2}, new long[]{20, 30, 2}, new long[]{30, 40, 34});
+        SplitPlan plan = profile.plan(TABLE, QUERY, base(0, 20, 40), 4);
+        assertEquals("[(0,20]x1, (20,30]x1, (30,40]x3]", segments(plan).toString());
+    }
+
+    @Test
+    public void costlyRangesAreCutEvenly() throws IOException {
+        CostProfile profile = profile(new long[]{0, 10, 10}, new long[]{10, 20, 30});
+        SplitPlan plan = profile.plan(TABLE, QUERY, base(0, 20), 4);
+        assertEquals("[(0,10]x1, (10,20]x3]", segments(plan).toString());
+    }
+
+    @Test
+    public void clippedRangesKeepTheirShareOfTheCost() throws IOException {
+        CostProfile profile = profile(new long[]{-100, 100, 400}, new long[]{100, 300, 100});
+        SplitPlan plan = profile.plan(TABLE, QUERY, base(0, 200), 5);
+        assertEquals("[(0,100]x4, (100,200]x1]", segments(plan).toString());
+    }
+
+    @Test
+    public void uncoveredSplitsAreKept() throws IOException {
+        CostProfile profile = profile(new long[]{0, 100, 10});
+        SplitPlan base = new SplitPlan(false);
+        base.add(0, 200, 2);
+        SplitPlan plan = profile.plan(TABLE, QUERY, base, 2);
+        assertEquals("[(0,100]x1, (100,200]x1]", segments(plan).toString());
+    }
+
+    @Test
+    public void noHistoryOrAnotherQueryGivesNoPlan() throws IOException {
+        CostProfile profile = profile(new long[]{0, 100, 10});
+        assertNull(profile.plan("ks.other", QUERY, base(0, 100), 1));
+        assertNull(profile.plan(TABLE, QUERY + " countPartitions=true", base(0, 100), 1));
+        assertNull(profile.plan(TABLE, QUERY, base(100, 200), 1));
+    }
+
+    @Test
+    public void savedRangesLoadBackUnderQuotedNames() throws IOException {
+        String table = "ks.\"My Table\"";
+        File file = new File(folder.getRoot(), "profile");
+        CostProfile profile = new CostProfile(file, 0);
+        profile.load();
+        SplitExecutor executor = profile.record(table, QUERY, s -> Futures.immediateFuture(1L));
+        executor.execute(new Split(0, 50));
+        executor.execute(new Split(50, 100));
+        profile.save();
+
+        CostProfile loaded = new CostProfile(file, 0);
+        loaded.load();
+        assertNotNull(loaded.plan(table, QUERY, base(0, 100), 2));
+        assertNull(loaded.plan(table, "another query", base(0, 100), 2));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> prometheus(CountMetrics metrics) throws IOException {
+        File file = new File(folder.getRoot(), "metrics.prom");
+        metrics.writePrometheus(file);
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    private static String value(List<String> lines, String name) {
+        for (String line : lines)
+            if (line.startsWith(name + "{"))
+                return line.substring(line.lastIndexOf(' ') + 1);
+        throw new AssertionError(name + " not written");
+    }
+
+    @Test
+    public void latencyCountLeavesOutResumedSplits() throws IOException {
+        CountMetrics metrics = new CountMetrics("ks", "t", 3, null);
+        metrics.recordResumed(0);
+        metrics.recordSuccess(2000000, 10);
+        metrics.recordSuccess(4000000, 10);
+        List<String> lines = prometheus(metrics);
+        assertEquals("3.0", value(lines, "cassandra_count_splits_done_total"));
+        assertEquals("2", value(lines, "cassandra_count_split_latency_seconds_count"));
+        assertEquals("0.006", value(lines, "cassandra_count_split_latency_seconds_sum"));
+    }
+
+    @Test
+    public void labelValuesAreEscaped() throws IOException {
+        CountMetrics metrics = new CountMetrics("ks", "\"My\\Table\"\n", 1, null);
+        List<String> lines = prometheus(metrics);
+        assertTrue(lines.contains("cassandra_count_rows_total{keyspace=\"ks\",table=\"\\\"My\\\\Table\\\"\\n\"} 0.0"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdentifiersTest {
+    @Test
+    public void unquotedNamesAreLowercased() {
+        assertEquals("mytable", Identifiers.handleId("MyTable"));
+        assertEquals("MyTable", Identifiers.handleId("\"MyTable\""));
+        assertEquals("a\"b", Identifiers.handleId("\"a\"\"b\""));
+    }
+
+    @Test
+    public void patternsAreNotIdentifiers() {
+        assertTrue(Identifiers.isIdentifier("t_1"));
+        assertTrue(Identifiers.isIdentifier("\"My Table\""));
+        assertFalse(Identifiers.isIdentifier("t_.*"));
+    }
+
+    @Test
+    public void namesAreQuotedOnlyWhenNeeded() {
+        assertEquals("my_table", Identifiers.quoteIfNecessary("my_table"));
+        assertEquals("\"MyTable\"", Identifiers.quoteIfNecessary("MyTable"));
+        assertEquals("\"1table\"", Identifiers.quoteIfNecessary("1table"));
+        assertEquals("\"select\"", Identifiers.quoteIfNecessary("select"));
+        assertEquals("\"order\"", Identifiers.quoteIfNecessary("order"));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowFilterTest {
+    private static final Map<String, DataType> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("n", DataType.cint());
+        TYPES.put("d", DataType.decimal());
+        TYPES.put("s", DataType.text());
+        TYPES.put("b", DataType.cboolean());
+        TYPES.put("ts", DataType.timestamp());
+        TYPES.put("u", DataType.timeuuid());
+        TYPES.put("blob", DataType.blob());
+        TYPES.put("ip", DataType.inet());
+        TYPES.put("l", DataType.list(DataType.text()));
+        TYPES.put("m", DataType.map(DataType.text(), DataType.cint()));
+    }
+
+    // A row that only answers getObject(name)
+    private static Row row(final Map<String, Object> values) {
+        return (Row) Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (proxy, method, args) -> {
+            if ("getObject".equals(method.getName()) && (args[0] instanceof String))
+                return values.get(args[0]);
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static boolean matches(String where, String column, Object value) {
+        RowFilter filter = RowFilter.parse(where);
+        filter.bind(TYPES::get);
+        Map<String, Object> values = new HashMap<>();
+        values.put(column, value);
+        return filter.matches(row(values));
+    }
+
+    private static String bindError(String where) {
+        try {
+            RowFilter.parse(where).bind(TYPES::get);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    @Test
+    public void parsesConjunctionsAndReportsColumns() {
+        RowFilter filter = RowFilter.parse("n > 5 AND \"Mixed\" IN ('a', 'b') and m CONTAINS KEY 'k'");
+        assertEquals(Arrays.asList("n", "\"Mixed\"", "m"), Arrays.asList(filter.getColumns().toArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownOperators() {
+        RowFilter.parse("n LIKE 'a%'");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTrailingText() {
+        RowFilter.parse("n = 1 OR n = 2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnterminatedStrings() {
+        RowFilter.parse("s = 'abc");
+    }
+
+    @Test
+    public void comparesNumbersAsNumbers() {
+        assertTrue(matches("n > 5", "n", 10));
+        assertFalse(matches("n > 50", "n", 10));
+        assertTrue(matches("n IN (1, 10)", "n", 10));
+        assertTrue(matches("d = 1.0", "d", new BigDecimal("1.00")));
+    }
+
+    @Test
+    public void comparesStringsAndBooleans() {
+        assertTrue(matches("s = 'it''s'", "s", "it's"));
+        assertTrue(matches("s != 'X'", "s", "Y"));
+        assertTrue(matches("b = true", "b", true));
+    }
+
+    @Test
+    public void ordersTextAsUtf8Bytes() {
+        // U+1F600 is a surrogate pair, below U+FF61 in UTF-16 but above it in UTF-8
+        assertTrue(matches("s > '\uFF61'", "s", "\uD83D\uDE00"));
+        assertFalse(matches("s < '\uFF61'", "s", "\uD83D\uDE00"));
+    }
+
+    @Test
+    public void comparesTimestampsAsDatesOrMillis() {
+        Date date = new Date(1600000000000L);
+        assertTrue(matches("ts > '2020-01-01 00:00:00+0000'", "ts", date));
+        assertTrue(matches("ts <= 1600000000000", "ts", date));
+        assertFalse(matches("ts < 1600000000000", "ts", date));
+    }
+
+    @Test
+    public void ordersTimeuuidsByTime() {
+        // The later time has the smaller most significant bits as a signed long
+        UUID earlier = UUID.fromString("00000001-0000-1000-8000-000000000000");
+        UUID later = UUID.fromString("00000000-0001-1000-8000-000000000000");
+        assertTrue(matches("u > 00000001-0000-1000-8000-000000000000", "u", later));
+        assertFalse(matches("u > 00000000-0001-1000-8000-000000000000", "u", earlier));
+    }
+
+    @Test
+    public void ordersBlobsAndAddressesAsUnsignedBytes() throws UnknownHostException {
+        assertTrue(matches("blob > 0x7f", "blob", ByteBuffer.wrap(new byte[]{(byte) 0x80})));
+        assertTrue(matches("ip > '10.0.0.127'", "ip", InetAddress.getByName("10.0.0.200")));
+    }
+
+    @Test
+    public void matchesCollectionElements() {
+        assertTrue(matches("l CONTAINS 'x'", "l", Arrays.asList("y", "x")));
+        assertTrue(matches("m CONTAINS KEY 'k'", "m", Collections.singletonMap("k", 1)));
+        assertTrue(matches("m CONTAINS 1", "m", Collections.singletonMap("k", 1)));
+        assertFalse(matches("m CONTAINS 2", "m", Collections.singletonMap("k", 1)));
+    }
+
+    @Test
+    public void nullMatchesNothing() {
+        assertFalse(matches("n != 5", "n", null));
+    }
+
+    @Test
+    public void rejectsLiteralsOfTheWrongType() {
+        assertTrue(bindError("n = 'x'").startsWith("'x' is not a int"));
+        assertTrue(bindError("s = x").startsWith("x is not a text"));
+    }
+
+    @Test
+    public void rejectsUnorderedComparisonsAndMisusedContains() {
+        assertEquals("l >: list<text> values have no order", bindError("l > 'a'"));
+        assertEquals("s is not a collection", bindError("s CONTAINS 'a'"));
+        assertEquals("l is not a map", bindError("l CONTAINS KEY 'a'"));
+        assertEquals("no column zz", bindError("zz = 1"));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardMergeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BigInteger[] range(long begin, long end) {
+        return new BigInteger[]{BigInteger.valueOf(begin), BigInteger.valueOf(end)};
+    }
+
+    private static String format(List<BigInteger[]> ranges) {
+        List<String> out = new ArrayList<>();
+        for (BigInteger[] r : ranges)
+            out.add("(" + r[0] + "," + r[1] + "]");
+        return out.toString();
+    }
+
+    @Test
+    public void runsMergeOverlappingAndAdjacentRanges() {
+        assertEquals("[(0,30], (40,50]]",
+                format(ShardMerge.runs(Arrays.asList(range(20, 30), range(0, 10), range(5, 20), range(40, 50)))));
+    }
+
+    @Test
+    public void subtractLeavesTheGaps() {
+        List<BigInteger[]> a = Arrays.asList(range(0, 100), range(200, 300));
+        List<BigInteger[]> b = Arrays.asList(range(10, 20), range(50, 250));
+        assertEquals("[(0,10], (20,50], (250,300]]", format(ShardMerge.subtract(a, b)));
+    }
+
+    @Test
+    public void subtractOfACoveringRunLeavesNothing() {
+        assertEquals("[]", format(ShardMerge.subtract(Collections.singletonList(range(0, 100)), Collections.singletonList(range(-5, 200)))));
+    }
+
+    private String[] write(SplitPlan plan, long[][] slices, boolean tokenRange) throws IOException {
+        String[] files = new String[slices.length];
+        for (int i = 0; i < slices.length; i++) {
+            ShardResult r = new ShardResult("ks.t", i + 1, slices.length, plan,
+                    plan.slice(slices[i][0], slices[i][1]), tokenRange);
+            r.setCount(10);
+            File f = folder.newFile();
+            r.write(f);
+            files[i] = f.getPath();
+        }
+        return files;
+    }
+
+    private static SplitPlan wholeRing() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, 10);
+        return plan;
+    }
+
+    @Test
+    public void mergesShardsThatTileTheRing() throws IOException {
+        assertTrue(new ShardMerge().run(write(wholeRing(), new long[][]{{0, 5}, {5, 10}}, false)));
+    }
+
+    @Test
+    public void rejectsOverlappingShards() throws IOException {
+        assertFalse(new ShardMerge().run(write(wholeRing(), new long[][]{{0, 6}, {5, 10}}, false)));
+    }
+
+    @Test
+    public void rejectsAGapBetweenShards() throws IOException {
+        assertFalse(new ShardMerge().run(write(wholeRing(), new long[][]{{0, 4}, {5, 10}}, false)));
+    }
+
+    @Test
+    public void rejectsAPlanThatMissesPartOfTheRing() throws IOException {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, 0, 5);
+        plan.add(10, SplitPlan.MAX_TOKEN, 5);
+        assertFalse(new ShardMerge().run(write(plan, new long[][]{{0, 5}, {5, 10}}, false)));
+        assertTrue(new ShardMerge().run(write(plan, new long[][]{{0, 5}, {5, 10}}, true)));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SplitJournalTest {
+    private static final String TABLE = "ks.t";
+    private static final String QUERY = "partitioner=Murmur3Partitioner where=null";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> remaining(SplitJournal journal, SplitPlan plan) {
+        List<String> splits = new ArrayList<>();
+        for (Iterator<Split> it = journal.remaining(plan.iterator(), null); it.hasNext(); )
+            splits.add(it.next().toString());
+        return splits;
+    }
+
+    private File write(Split... done) throws IOException {
+        File file = folder.newFile();
+        SplitJournal journal = new SplitJournal(file, TABLE, QUERY);
+        journal.open();
+        for (Split s : done)
+            journal.onComplete(s, s.width().longValue());
+        journal.close();
+        return file;
+    }
+
+    @Test
+    public void resumesAroundBisectedHalves() throws IOException {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(0, 400, 4);
+        Split[] halves = new Split(100, 200).bisect(BigInteger.ONE);
+        Split[] quarters = halves[1].bisect(BigInteger.ONE);
+        File file = write(new Split(0, 100), halves[0], quarters[1]);
+
+        SplitJournal journal = new SplitJournal(file, TABLE, QUERY);
+        assertTrue(journal.load(false));
+        assertEquals(Arrays.asList("(150,175]", "(200,300]", "(300,400]"), remaining(journal, plan));
+        assertEquals(100 + 50 + 25, journal.getResumedCount());
+        assertEquals(3, journal.getResumedRanges());
+    }
+
+    @Test
+    public void ignoresEntriesSpanningPlannedSplits() throws IOException {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(0, 400, 4);
+        File file = write(new Split(50, 150));
+
+        SplitJournal journal = new SplitJournal(file, TABLE, QUERY);
+        assertTrue(journal.load(false));
+        assertEquals(4, remaining(journal, plan).size());
+        assertEquals(0, journal.getResumedCount());
+    }
+
+    @Test
+    public void skipsATornLastLine() throws IOException {
+        File file = write(new Split(0, 100));
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            out.print("100,2");
+        }
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(0, 200, 2);
+        SplitJournal journal = new SplitJournal(file, TABLE, QUERY);
+        assertTrue(journal.load(false));
+        assertEquals(Collections.singletonList("(100,200]"), remaining(journal, plan));
+    }
+
+    @Test
+    public void refusesAnotherTableOrQuery() throws IOException {
+        File file = write(new Split(0, 100));
+        assertFalse(new SplitJournal(file, "ks.other", QUERY).load(false));
+        assertFalse(new SplitJournal(file, TABLE, QUERY + " AND x = 1").load(false));
+    }
+}
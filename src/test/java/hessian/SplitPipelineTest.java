@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SplitPipelineTest {
+    private static final long TOTAL_ROWS = 1000000000L;
+
+    private static long count(FakeSplitExecutor executor, int numSplits, int maxRetries) {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, numSplits);
+        ConcurrencyController limiter = new ConcurrencyController(50, 0, 0);
+        CountMetrics metrics = new CountMetrics("test", "fake", plan.getTotalSplits(), limiter);
+        SplitPipeline pipeline = new SplitPipeline(executor, limiter, metrics, 0);
+        pipeline.setRetryPolicy(maxRetries, 1, BigInteger.ONE);
+        try {
+            assertTrue("count failed: " + pipeline.getFailure(), pipeline.run(plan.iterator()));
+        } finally {
+            executor.shutdown();
+        }
+        return pipeline.getCount();
+    }
+
+    @Test
+    public void countsEveryRowExactlyOnce() {
+        assertEquals(TOTAL_ROWS, count(new FakeSplitExecutor(TOTAL_ROWS, "constant", 0, 0, 0, 1), 1000, 5));
+    }
+
+    @Test
+    public void countsExactlyThroughTimeoutsAndBisection() {
+        FakeSplitExecutor executor = new FakeSplitExecutor(TOTAL_ROWS, "exponential", 0.2, 0.1, 0.02, 4);
+        assertEquals(TOTAL_ROWS, count(executor, 500, 20));
+    }
+}
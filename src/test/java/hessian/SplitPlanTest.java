@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SplitPlanTest {
+    private static List<Split> splits(SplitPlan plan) {
+        List<Split> splits = new ArrayList<>();
+        for (Split s : plan)
+            splits.add(s);
+        return splits;
+    }
+
+    // The splits are contiguous and run from begin to end
+    private static void assertTiles(List<Split> splits, BigInteger begin, BigInteger end) {
+        BigInteger cursor = begin;
+        for (Split s : splits) {
+            assertEquals(cursor, new BigInteger(s.beginString()));
+            assertTrue(s.width().signum() > 0);
+            cursor = new BigInteger(s.endString());
+        }
+        assertEquals(end, cursor);
+    }
+
+    @Test
+    public void wholeRingTilesFromMinToMax() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, 7);
+        List<Split> splits = splits(plan);
+        assertEquals(7, splits.size());
+        assertTiles(splits, BigInteger.valueOf(Long.MIN_VALUE), BigInteger.valueOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void splitsDifferInWidthByAtMostOneToken() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, 3);
+        BigInteger min = null;
+        BigInteger max = null;
+        for (Split s : plan) {
+            min = (null == min) ? s.width() : min.min(s.width());
+            max = (null == max) ? s.width() : max.max(s.width());
+        }
+        assertTrue(max.subtract(min).compareTo(BigInteger.ONE) <= 0);
+    }
+
+    @Test
+    public void wrappingRangeIsAddedAsTwoSegments() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(100, -100, 4);
+        assertEquals(2, plan.getNumSegments());
+        assertEquals(4, plan.getTotalSplits());
+        assertEquals("(100," + Long.MAX_VALUE + "]", plan.segment(0).toString());
+        assertEquals("(" + Long.MIN_VALUE + ",-100]", plan.segment(1).toString());
+    }
+
+    @Test
+    public void wrappingRangeEndingAtTheRingEdgeIsOneSegment() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(100, SplitPlan.MIN_TOKEN, 4);
+        assertEquals(1, plan.getNumSegments());
+        assertEquals("(100," + Long.MAX_VALUE + "]", plan.segment(0).toString());
+    }
+
+    @Test
+    public void noMoreSplitsThanTokens() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MAX_TOKEN - 3, SplitPlan.MAX_TOKEN, 10);
+        List<Split> splits = splits(plan);
+        assertEquals(3, splits.size());
+        assertTiles(splits, BigInteger.valueOf(Long.MAX_VALUE - 3), BigInteger.valueOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void wideRingTilesFromMinToMax() {
+        SplitPlan plan = new SplitPlan(true);
+        plan.add(SplitPlan.MIN_WIDE_TOKEN, SplitPlan.MAX_WIDE_TOKEN, 5);
+        assertTiles(splits(plan), SplitPlan.MIN_WIDE_TOKEN, SplitPlan.MAX_WIDE_TOKEN);
+    }
+
+    @Test
+    public void slicesTileThePlan() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(100, -100, 5);
+        plan.add(-50, 50, 4);
+        List<Split> all = splits(plan);
+        List<Split> sliced = new ArrayList<>();
+        long total = plan.getTotalSplits();
+        for (int i = 0; i < 3; i++)
+            sliced.addAll(splits(plan.slice(total * i / 3, total * (i + 1) / 3)));
+        assertEquals(all.toString(), sliced.toString());
+    }
+
+    @Test
+    public void sliceOfTheWholeRingKeepsItsEdges() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(SplitPlan.MIN_TOKEN, SplitPlan.MAX_TOKEN, 10);
+        assertTiles(splits(plan.slice(0, 4)), BigInteger.valueOf(Long.MIN_VALUE), new BigInteger(plan.split(0, 3).endString()));
+        assertTiles(splits(plan.slice(4, 10)), new BigInteger(plan.split(0, 4).beginString()), BigInteger.valueOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void tokensOutsideTheRingAreNotTokens() {
+        SplitPlan plan = new SplitPlan(false);
+        assertTrue(plan.isToken(BigInteger.valueOf(Long.MIN_VALUE)));
+        assertTrue(plan.isToken(BigInteger.valueOf(Long.MAX_VALUE)));
+        assertFalse(plan.isToken(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)));
+        assertFalse(plan.isToken(BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE)));
+        SplitPlan wide = new SplitPlan(true);
+        assertTrue(wide.isToken(SplitPlan.MAX_WIDE_TOKEN));
+        assertFalse(wide.isToken(SplitPlan.MIN_WIDE_TOKEN.subtract(BigInteger.ONE)));
+    }
+
+    @Test
+    public void cutAtSplitsSegmentsAtRingTokens() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(-1000, 1000, 10);
+        plan.add(2000, 3000, 2);
+        BigInteger[] tokens = {BigInteger.valueOf(-1000), BigInteger.valueOf(-500), BigInteger.valueOf(0), BigInteger.valueOf(2500)};
+        SplitPlan cut = plan.cutAt(tokens);
+        assertEquals(5, cut.getNumSegments());
+        assertEquals("(-1000,-500]", cut.segment(0).toString());
+        assertEquals("(-500,0]", cut.segment(1).toString());
+        assertEquals("(0,1000]", cut.segment(2).toString());
+        assertEquals("(2000,2500]", cut.segment(3).toString());
+        assertEquals("(2500,3000]", cut.segment(4).toString());
+        assertEquals(3, cut.getNumSplits(0));
+        assertEquals(5, cut.getNumSplits(2));
+        assertEquals(1, cut.getNumSplits(3));
+        List<Split> splits = splits(cut);
+        assertTiles(splits.subList(0, 3 + 3 + 5), BigInteger.valueOf(-1000), BigInteger.valueOf(1000));
+    }
+
+    @Test
+    public void cutAtKeepsAPlanThatSpansNoToken() {
+        SplitPlan plan = new SplitPlan(false);
+        plan.add(-1000, 0, 4);
+        plan.add(0, 1000, 4);
+        assertTrue(plan == plan.cutAt(new BigInteger[]{BigInteger.valueOf(0), BigInteger.valueOf(1000)}));
+    }
+}
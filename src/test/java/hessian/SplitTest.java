@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SplitTest {
+    private static final BigInteger MIN_WIDTH = BigInteger.valueOf(16);
+
+    @Test
+    public void bisectsAtTwiceTheMinimumWidth() {
+        Split[] halves = new Split(0, 32).bisect(MIN_WIDTH);
+        assertEquals("(0,16]", halves[0].toString());
+        assertEquals("(16,32]", halves[1].toString());
+    }
+
+    @Test
+    public void doesNotBisectBelowTwiceTheMinimumWidth() {
+        assertNull(new Split(0, 31).bisect(MIN_WIDTH));
+        assertNull(new Split(0, 0).bisect(BigInteger.ONE));
+    }
+
+    @Test
+    public void bisectsTheWholeRing() {
+        Split[] halves = new Split(Long.MIN_VALUE, Long.MAX_VALUE).bisect(BigInteger.ONE);
+        assertEquals(Long.MIN_VALUE, halves[0].getBegin());
+        assertEquals(halves[0].getEnd(), halves[1].getBegin());
+        assertEquals(Long.MAX_VALUE, halves[1].getEnd());
+        assertEquals(BigInteger.ONE, halves[1].width().subtract(halves[0].width()));
+    }
+
+    @Test
+    public void minimumWidthWiderThanAnyLongRangeNeverBisects() {
+        assertNull(new Split(Long.MIN_VALUE, Long.MAX_VALUE).bisect(BigInteger.ONE.shiftLeft(63)));
+    }
+
+    @Test
+    public void bisectsWideSplitsAtTwiceTheMinimumWidth() {
+        Split[] halves = new Split(BigInteger.ZERO, BigInteger.valueOf(32)).bisect(MIN_WIDTH);
+        assertEquals("(0,16]", halves[0].toString());
+        assertEquals("(16,32]", halves[1].toString());
+        assertNull(new Split(BigInteger.ZERO, BigInteger.valueOf(31)).bisect(MIN_WIDTH));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hessian;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * An in-process stand-in for Cassandra.  Rows are spread evenly over
+ * the Murmur3 ring, so a split's count depends only on its tokens and
+ * bisected halves add up to their parent.  Each query completes after
+ * a latency drawn from the chosen distribution, or fails with a read
+ * timeout or an overload error at the configured rates.
+ */
+public class FakeSplitExecutor implements SplitExecutor {
+    private static final double RING_WIDTH = Math.pow(2, 64);
+
+    private final long totalRows;
+    private final String distribution;
+    private final double meanMillis;
+    private final double timeoutRate;
+    private final double errorRate;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * distribution is "constant", "exponential" or "lognormal" (mean
+     * meanMillis, sigma 1, so about 1 query in 100 takes 10x the mean).
+     */
+    public FakeSplitExecutor(long totalRows, String distribution, double meanMillis,
+                             double timeoutRate, double errorRate, int threads) {
+        this.totalRows = totalRows;
+        this.distribution = distribution;
+        this.meanMillis = meanMillis;
+        this.timeoutRate = timeoutRate;
+        this.errorRate = errorRate;
+        this.timer = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fake-cassandra");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Rows in (MIN_TOKEN, t]
+    private long rowsUpTo(double t) {
+        return (long) ((t - (double) Long.MIN_VALUE) / RING_WIDTH * totalRows);
+    }
+
+    private long count(Split split) {
+        return rowsUpTo(split.getEnd()) - rowsUpTo(split.getBegin());
+    }
+
+    private long latencyMicros(Random r) {
+        double mean = meanMillis * 1000;
+        switch (distribution) {
+            case "exponential":
+                return (long) (-mean * Math.log(1 - r.nextDouble()));
+            case "lognormal":
+                // exp(mu + sigma^2 / 2) = mean with sigma = 1
+                return (long) Math.exp(Math.log(mean) - 0.5 + r.nextGaussian());
+            default:
+                return (long) mean;
+        }
+    }
+
+    @Override
+    public ListenableFuture<Long> execute(Split split) {
+        Random r = ThreadLocalRandom.current();
+        double roll = r.nextDouble();
+        final Throwable error;
+        if (roll < timeoutRate)
+            error = new ReadTimeoutException(ConsistencyLevel.LOCAL_ONE, 0, 1, false);
+        else if (roll < timeoutRate + errorRate)
+            error = new OverloadedException(null, "fake overload");
+        else
+            error = null;
+        final long count = count(split);
+        long delay = (0 < meanMillis) ? latencyMicros(r) : 0;
+        if (0 == delay)
+            return (null == error) ? Futures.immediateFuture(count) : Futures.<Long>immediateFailedFuture(error);
+
+        final SettableFuture<Long> future = SettableFuture.create();
+        timer.schedule(() -> {
+            if (null == error)
+                future.set(count);
+            else
+                future.setException(error);
+        }, delay, TimeUnit.MICROSECONDS);
+        return future;
+    }
+
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}